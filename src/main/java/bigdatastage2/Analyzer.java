@@ -0,0 +1,257 @@
+package bigdatastage2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns text into index terms: the Tokenizer followed by a chain of per-language
+ * token filters. The indexer analyzes a book with the analyzer of its language field,
+ * the search service analyzes the query with the analyzer of the requested language,
+ * so both sides produce the same terms. A query without a language is analyzed once
+ * per ANALYZER_SEARCH_LANGUAGES language and matches books of any of them.
+ *
+ * ANALYZER_CHAIN lists the filters in order (default none, which keeps every token
+ * as the index was built before the chain existed):
+ * stopwords - drops the language's stopwords (stopwords/<language>.txt on the
+ *             classpath, or ANALYZER_STOPWORDS_DIR/<language>.txt if set)
+ * stem      - light, plural-only stemming for English, French, Spanish, Italian,
+ *             Portuguese and German
+ * Changing the chain requires a full index rebuild.
+ */
+public class Analyzer {
+
+  /* One step of the chain; returns the term to index or null to drop it. */
+  @FunctionalInterface
+  public interface TokenFilter {
+    String apply(String term);
+  }
+
+  private static final String CHAIN = Config.get("ANALYZER_CHAIN", "none").toLowerCase();
+  private static final String DEFAULT_LANGUAGE = Config.get("ANALYZER_DEFAULT_LANGUAGE", "english");
+  private static final String SEARCH_LANGUAGES = Config.get("ANALYZER_SEARCH_LANGUAGES",
+      "english,french,german,spanish,italian,portuguese,dutch");
+  private static final Map<String, Analyzer> BY_LANGUAGE = new ConcurrentHashMap<>();
+  private static final Map<String, String> CODES = Map.of(
+      "en", "english", "fr", "french", "de", "german", "es", "spanish",
+      "it", "italian", "pt", "portuguese", "nl", "dutch");
+
+  private final String language;
+  private final List<TokenFilter> filters = new ArrayList<>();
+  private final boolean stemming;
+
+  private Analyzer(String language) {
+    this.language = language;
+    boolean stem = false;
+    for (String step : CHAIN.split(",")) {
+      switch (step.trim()) {
+        case "stopwords" -> {
+          Set<String> stopwords = loadStopwords(language);
+          if (!stopwords.isEmpty()) {
+            filters.add(t -> stopwords.contains(t) ? null : t);
+          }
+        }
+        case "stem" -> {
+          TokenFilter stemmer = lightStemmer(language);
+          if (stemmer != null) {
+            filters.add(stemmer);
+            stem = true;
+          }
+        }
+        case "", "none" -> {
+        }
+        default -> System.err.println("Unknown analyzer step ignored: " + step);
+      }
+    }
+    this.stemming = stem;
+  }
+
+  /* Analyzer for a book's language field ("English", "en", ...); null means the default. */
+  public static Analyzer forLanguage(String language) {
+    return BY_LANGUAGE.computeIfAbsent(normalize(language), Analyzer::new);
+  }
+
+  /* Analyzers for queries that name no language: one per ANALYZER_SEARCH_LANGUAGES entry. */
+  public static List<Analyzer> searchLanguages() {
+    Map<String, Analyzer> analyzers = new LinkedHashMap<>();
+    for (String language : SEARCH_LANGUAGES.split(",")) {
+      if (!language.isBlank()) {
+        Analyzer analyzer = forLanguage(language);
+        analyzers.putIfAbsent(analyzer.language(), analyzer);
+      }
+    }
+    if (analyzers.isEmpty()) {
+      analyzers.put(DEFAULT_LANGUAGE, forLanguage(null));
+    }
+    return new ArrayList<>(analyzers.values());
+  }
+
+  static String normalize(String language) {
+    if (language == null || language.isBlank()) {
+      return DEFAULT_LANGUAGE;
+    }
+    // "English", "en", "French, English" -> first listed language
+    String first = language.split("[,;/]")[0].trim().toLowerCase();
+    return CODES.getOrDefault(first, first);
+  }
+
+  public String language() {
+    return language;
+  }
+
+  /* Unique index terms of the text, in order of first occurrence. */
+  public List<String> analyze(CharSequence text, Tokenizer tokenizer) {
+    List<String> tokens = tokenizer.uniqueTerms(text);
+    if (filters.isEmpty()) {
+      return tokens;
+    }
+    // stemming can map different tokens to the same term
+    Set<String> seen = stemming ? new LinkedHashSet<>() : null;
+    List<String> terms = new ArrayList<>(tokens.size());
+    for (String token : tokens) {
+      String term = token;
+      for (TokenFilter f : filters) {
+        term = f.apply(term);
+        if (term == null) {
+          break;
+        }
+      }
+      if (term != null && term.length() >= Tokenizer.MIN_LENGTH && (seen == null || seen.add(term))) {
+        terms.add(term);
+      }
+    }
+    return terms;
+  }
+
+  /*
+   * Index terms of the text with their sorted token positions, in order of first
+   * occurrence. Dropped tokens keep their positions, so "white the whale" does not
+   * match the phrase "white whale".
+   */
+  public Map<String, IntList> analyzePositions(CharSequence text, Tokenizer tokenizer) {
+    List<IntList> positions = new ArrayList<>();
+    List<String> tokens = tokenizer.uniqueTerms(text, positions);
+    Map<String, IntList> terms = new LinkedHashMap<>();
+    for (int i = 0; i < tokens.size(); i++) {
+      String term = tokens.get(i);
+      for (TokenFilter f : filters) {
+        term = f.apply(term);
+        if (term == null) {
+          break;
+        }
+      }
+      if (term == null || term.length() < Tokenizer.MIN_LENGTH) {
+        continue;
+      }
+      IntList merged = terms.get(term);
+      if (merged == null) {
+        terms.put(term, positions.get(i));
+      } else {
+        // stemming mapped two tokens to this term
+        IntList other = positions.get(i);
+        merged.addAll(other.raw(), other.size());
+        merged.sortUnique();
+      }
+    }
+    return terms;
+  }
+
+  // ---------- stopwords ----------
+
+  private static Set<String> loadStopwords(String language) {
+    Set<String> words = new HashSet<>();
+    String dir = Config.get("ANALYZER_STOPWORDS_DIR", "");
+    try {
+      if (!dir.isEmpty()) {
+        Path file = Paths.get(dir, language + ".txt");
+        if (Files.exists(file)) {
+          addWords(Files.newInputStream(file), words);
+          return words;
+        }
+      }
+      InputStream in = Analyzer.class.getResourceAsStream("/stopwords/" + language + ".txt");
+      if (in != null) {
+        addWords(in, words);
+      }
+    } catch (IOException e) {
+      System.err.println("Could not read stopwords for " + language + ": " + e.getMessage());
+    }
+    return words;
+  }
+
+  /* One word per line; '#' starts a comment. */
+  private static void addWords(InputStream in, Set<String> words) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int hash = line.indexOf('#');
+        String word = (hash >= 0 ? line.substring(0, hash) : line).trim().toLowerCase();
+        if (!word.isEmpty()) {
+          words.add(word);
+        }
+      }
+    }
+  }
+
+  // ---------- light stemming ----------
+
+  /* Plural stripping only; aggressive stemmers hurt precision on literary text. */
+  private static TokenFilter lightStemmer(String language) {
+    switch (language) {
+      case "english":
+        return Analyzer::stemEnglish;
+      case "french":
+        return t -> t.length() > 3 && (t.endsWith("s") || t.endsWith("x")) ? t.substring(0, t.length() - 1) : t;
+      case "spanish":
+      case "portuguese":
+      case "italian":
+        return t -> t.length() > 3 && t.endsWith("s") ? t.substring(0, t.length() - 1) : t;
+      case "german":
+        return Analyzer::stemGerman;
+      default:
+        return null;
+    }
+  }
+
+  /* Harman's S-stemmer. */
+  static String stemEnglish(String t) {
+    int n = t.length();
+    if (n <= 3 || !t.endsWith("s")) {
+      return t;
+    }
+    if (t.endsWith("ies") && !t.endsWith("eies") && !t.endsWith("aies")) {
+      return t.substring(0, n - 3) + "y";
+    }
+    if (t.endsWith("es") && !t.endsWith("aes") && !t.endsWith("ees") && !t.endsWith("oes")) {
+      return t.substring(0, n - 1);
+    }
+    if (!t.endsWith("us") && !t.endsWith("ss")) {
+      return t.substring(0, n - 1);
+    }
+    return t;
+  }
+
+  static String stemGerman(String t) {
+    int n = t.length();
+    if (n > 5 && (t.endsWith("en") || t.endsWith("er") || t.endsWith("es"))) {
+      return t.substring(0, n - 2);
+    }
+    if (n > 4 && (t.endsWith("e") || t.endsWith("n") || t.endsWith("s"))) {
+      return t.substring(0, n - 1);
+    }
+    return t;
+  }
+}
@@ -0,0 +1,154 @@
+package bigdatastage2;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage format for book text (content / footer).
+ *
+ * Encoded values start with a one-byte codec marker:
+ * RAW (UTF-8 bytes follow) or DEFLATE (the text is cut into fixed-size blocks
+ * that are compressed independently). Documents written before the codec existed
+ * hold plain strings; readText() understands all three forms.
+ */
+public class BookCodec {
+
+  public static final String NONE = "none";
+  public static final String DEFLATE = "deflate";
+
+  private static final byte MARKER_RAW = 0;
+  private static final byte MARKER_DEFLATE = 1;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final String CONFIGURED = validCodec(Config.get("BOOK_CODEC", NONE).toLowerCase());
+
+  /* Codec used for newly written books, "none" keeps plain strings. */
+  public static String configuredCodec() {
+    return CONFIGURED;
+  }
+
+  /* An unknown BOOK_CODEC falls back to none, so the codec tag of a book is always the one used. */
+  private static String validCodec(String codec) {
+    if (NONE.equals(codec) || DEFLATE.equals(codec)) {
+      return codec;
+    }
+    System.err.println("Unknown BOOK_CODEC '" + codec + "', storing books uncompressed (none).");
+    return NONE;
+  }
+
+  /* Value to store in a book document for the given codec. */
+  public static Object toStored(String text, String codec) {
+    if (!NONE.equals(codec) && !DEFLATE.equals(codec)) {
+      throw new IllegalArgumentException("Unknown book codec: " + codec);
+    }
+    if (text == null || NONE.equals(codec)) {
+      return text;
+    }
+    return new Binary(encode(text, true));
+  }
+
+  /* Reads a text field regardless of whether it is a plain string or encoded binary. */
+  public static String readText(Document doc, String field) {
+    Object value = doc.get(field);
+    if (value == null || value instanceof String) {
+      return (String) value;
+    }
+    if (value instanceof Binary binary) {
+      return decode(binary.getData());
+    }
+    if (value instanceof byte[] bytes) {
+      return decode(bytes);
+    }
+    throw new IllegalStateException("Unsupported type for field '" + field + "': " + value.getClass());
+  }
+
+  public static byte[] encode(String text, boolean compress) {
+    byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+    if (!compress) {
+      byte[] out = new byte[raw.length + 1];
+      out[0] = MARKER_RAW;
+      System.arraycopy(raw, 0, out, 1, raw.length);
+      return out;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 3 + 16);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    byte[] buf = new byte[BLOCK_SIZE + BLOCK_SIZE / 16 + 64];
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(MARKER_DEFLATE);
+      out.writeInt(raw.length);
+      for (int off = 0; off < raw.length; off += BLOCK_SIZE) {
+        int len = Math.min(BLOCK_SIZE, raw.length - off);
+        deflater.reset();
+        deflater.setInput(raw, off, len);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished()) {
+          compressed += deflater.deflate(buf, compressed, buf.length - compressed);
+        }
+        out.writeInt(len);
+        out.writeInt(compressed);
+        out.write(buf, 0, compressed);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  public static String decode(byte[] data) {
+    if (data.length == 0) {
+      return "";
+    }
+    if (data[0] == MARKER_RAW) {
+      return new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+    }
+    if (data[0] != MARKER_DEFLATE) {
+      throw new IllegalStateException("Unknown book codec marker: " + data[0]);
+    }
+    Inflater inflater = new Inflater();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+      byte[] raw = new byte[in.readInt()];
+      byte[] block = new byte[BLOCK_SIZE + BLOCK_SIZE / 16 + 64];
+      int pos = 0;
+      while (pos < raw.length) {
+        int len = in.readInt();
+        int compressed = in.readInt();
+        if (compressed > block.length) {
+          block = new byte[compressed];
+        }
+        in.readFully(block, 0, compressed);
+        inflater.reset();
+        inflater.setInput(block, 0, compressed);
+        int read = 0;
+        while (read < len) {
+          int n = inflater.inflate(raw, pos + read, len - read);
+          if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+            break;
+          }
+          read += n;
+        }
+        if (read != len) {
+          throw new IllegalStateException("Corrupt book block at offset " + pos);
+        }
+        pos += len;
+      }
+      return new String(raw, StandardCharsets.UTF_8);
+    } catch (IOException | DataFormatException e) {
+      throw new IllegalStateException("Corrupt compressed book: " + e.getMessage(), e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,660 @@
+package bigdatastage2;
+
+import bigdatastage2.PostingLists.AndIterator;
+import bigdatastage2.PostingLists.AndNotIterator;
+import bigdatastage2.PostingLists.ArrayIterator;
+import bigdatastage2.PostingLists.DocIterator;
+import bigdatastage2.PostingLists.OrIterator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A search query with boolean operators:
+ *
+ * white whale                    both terms (AND is implicit)
+ * whale AND (ahab OR ishmael)    operators in capitals; AND binds tighter than OR
+ * whale NOT moby                 NOT excludes; a query of only NOT clauses searches all books
+ * "white whale" NEAR/5 ahab      phrases and proximity, see PositionalQuery
+ * author:melville lang:en        metadata clauses; author:"herman melville" for several
+ * year:1851 year:1850..1859      words, language: works as well as lang:, year ranges are
+ *                                inclusive and may be open (1850.., ..1859)
+ *
+ * Words and phrases go through the analyzer like the indexed books; clauses that
+ * analyze to nothing (stopwords) are dropped. A query parsed with several analyzers
+ * (no language given) is the OR of its readings, one per language, so books
+ * indexed with another language's stopwords and stemmer are still found.
+ *
+ * evaluate() fetches the postings of every term in one round and plans with their
+ * lengths (document frequencies): a term no book contains empties its AND before
+ * anything else runs, AND children are intersected rarest first, and the expensive
+ * checks - metadata clauses and positions - are pushed to the end of their AND, so
+ * they only see the books that survived the postings. Postings are combined by the
+ * iterators of PostingLists, which skip instead of materializing.
+ */
+public class BooleanQuery {
+
+  /* What evaluation needs from the search service. */
+  public interface Source {
+    /* Sorted postings of the terms, fetched together; unknown terms map to empty arrays. */
+    Map<String, int[]> postings(Collection<String> terms);
+
+    /* Sorted ids of the books among candidates (all books if null) matching every field clause. */
+    int[] metadata(List<Field> fields, int[] candidates);
+
+    /* The candidates whose term positions satisfy the query. */
+    int[] positional(PositionalQuery query, int[] candidates);
+  }
+
+  private static final Map<String, String> FIELDS = Map.of(
+      "author", "author",
+      "lang", "language",
+      "language", "language",
+      "year", "year");
+
+  interface Node {
+  }
+
+  record Term(String term) implements Node {
+  }
+
+  /* A metadata clause; name is author, language or year. */
+  public record Field(String name, String value) implements Node {
+  }
+
+  record Positional(PositionalQuery query, String text) implements Node {
+  }
+
+  record And(List<Node> children) implements Node {
+  }
+
+  record Or(List<Node> children) implements Node {
+  }
+
+  record Not(Node child) implements Node {
+  }
+
+  /* Matches nothing; only produced by the planner. */
+  record None() implements Node {
+  }
+
+  private static final None NONE = new None();
+
+  private final Node root;
+
+  private BooleanQuery(Node root) {
+    this.root = root;
+  }
+
+  // ---------- parsing ----------
+
+  private enum Kind { WORD, PHRASE, FIELD, AND, OR, NOT, NEAR, LPAREN, RPAREN }
+
+  private record Token(Kind kind, String text, String field) {
+  }
+
+  /* Parses the query; throws IllegalArgumentException if it is malformed. */
+  public static BooleanQuery parse(String query, Analyzer analyzer) {
+    Parser parser = new Parser(lex(query), analyzer);
+    Node root = parser.parseOr();
+    if (parser.pos < parser.tokens.size()) {
+      throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.pos).text + "' in query");
+    }
+    return new BooleanQuery(root);
+  }
+
+  /* The OR of the query's readings under each analyzer; identical readings count once. */
+  public static BooleanQuery parse(String query, List<Analyzer> analyzers) {
+    Map<String, Node> readings = new LinkedHashMap<>();
+    for (Analyzer analyzer : analyzers) {
+      Node root = parse(query, analyzer).root;
+      if (root != null) {
+        readings.putIfAbsent(canonical(root), root);
+      }
+    }
+    if (readings.isEmpty()) {
+      return new BooleanQuery(null);
+    }
+    List<Node> roots = absorb(readings);
+    return new BooleanQuery(roots.size() == 1 ? roots.get(0) : new Or(roots));
+  }
+
+  /*
+   * Alternatives of an OR (by canonical form) without the ANDs that contain another
+   * alternative: (the AND whale) OR whale is whale.
+   */
+  private static List<Node> absorb(Map<String, Node> alternatives) {
+    List<Node> kept = new ArrayList<>();
+    for (Node node : alternatives.values()) {
+      boolean absorbed = false;
+      if (node instanceof And) {
+        for (Node conjunct : flatten(node)) {
+          absorbed |= alternatives.containsKey(canonical(conjunct));
+        }
+      }
+      if (!absorbed) {
+        kept.add(node);
+      }
+    }
+    return kept;
+  }
+
+  /* This query restricted by metadata clauses, e.g. the author/language/year request parameters. */
+  public BooleanQuery filteredBy(List<Field> fields) {
+    if (root == null || fields.isEmpty()) {
+      return this;
+    }
+    List<Node> children = new ArrayList<>();
+    children.add(root);
+    children.addAll(fields);
+    return new BooleanQuery(new And(children));
+  }
+
+  /* Language named by the first lang: clause of the query, or null. */
+  public static String languageClause(String query) {
+    for (Token t : lex(query)) {
+      if (t.kind == Kind.FIELD && t.field.equals("language")) {
+        return t.text;
+      }
+    }
+    return null;
+  }
+
+  private static List<Token> lex(String query) {
+    List<Token> tokens = new ArrayList<>();
+    int i = 0;
+    int n = query.length();
+    while (i < n) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(') {
+        tokens.add(new Token(Kind.LPAREN, "(", null));
+        i++;
+      } else if (c == ')') {
+        tokens.add(new Token(Kind.RPAREN, ")", null));
+        i++;
+      } else if (c == '"') {
+        int close = closingQuote(query, i);
+        tokens.add(new Token(Kind.PHRASE, query.substring(i + 1, close), null));
+        i = close + 1;
+      } else {
+        int end = i;
+        while (end < n && !Character.isWhitespace(query.charAt(end)) && "()\"".indexOf(query.charAt(end)) < 0) {
+          end++;
+        }
+        String word = query.substring(i, end);
+        i = end;
+        switch (word) {
+          case "AND" -> tokens.add(new Token(Kind.AND, word, null));
+          case "OR" -> tokens.add(new Token(Kind.OR, word, null));
+          case "NOT" -> tokens.add(new Token(Kind.NOT, word, null));
+          default -> {
+            if (word.matches("NEAR/\\d+")) {
+              tokens.add(new Token(Kind.NEAR, word, null));
+              continue;
+            }
+            int colon = word.indexOf(':');
+            String field = colon > 0 ? FIELDS.get(word.substring(0, colon).toLowerCase(Locale.ROOT)) : null;
+            if (field == null) {
+              tokens.add(new Token(Kind.WORD, word, null));
+              continue;
+            }
+            String value = word.substring(colon + 1);
+            if (value.isEmpty() && i < n && query.charAt(i) == '"') {
+              int close = closingQuote(query, i);
+              value = query.substring(i + 1, close);
+              i = close + 1;
+            }
+            if (!value.isBlank()) {
+              tokens.add(new Token(Kind.FIELD, value.trim(), field));
+            }
+          }
+        }
+      }
+    }
+    return tokens;
+  }
+
+  /* Index of the quote closing the one at open; an unclosed quote runs to the end. */
+  private static int closingQuote(String query, int open) {
+    int close = query.indexOf('"', open + 1);
+    return close < 0 ? query.length() : close;
+  }
+
+  /* Recursive descent: or := and (OR and)*, and := unary (AND? unary)*, unary := NOT unary | primary. */
+  private static final class Parser {
+    private final List<Token> tokens;
+    private final Analyzer analyzer;
+    private int pos = 0;
+
+    Parser(List<Token> tokens, Analyzer analyzer) {
+      this.tokens = tokens;
+      this.analyzer = analyzer;
+    }
+
+    private Kind peek() {
+      return pos < tokens.size() ? tokens.get(pos).kind : null;
+    }
+
+    Node parseOr() {
+      List<Node> children = new ArrayList<>();
+      addIfPresent(children, parseAnd());
+      while (peek() == Kind.OR) {
+        pos++;
+        addIfPresent(children, parseAnd());
+      }
+      return combine(children, false);
+    }
+
+    private Node parseAnd() {
+      List<Node> children = new ArrayList<>();
+      for (Kind k = peek(); k != null && k != Kind.OR && k != Kind.RPAREN; k = peek()) {
+        if (k == Kind.AND) {
+          pos++;
+        } else {
+          addIfPresent(children, parseUnary());
+        }
+      }
+      return combine(children, true);
+    }
+
+    private Node parseUnary() {
+      if (peek() == Kind.NOT) {
+        pos++;
+        Node child = parseUnary();
+        return child == null ? null : new Not(child);
+      }
+      Kind k = peek();
+      if (k == null || k == Kind.OR || k == Kind.RPAREN || k == Kind.AND) {
+        return null;
+      }
+      Token t = tokens.get(pos++);
+      return switch (t.kind) {
+        case LPAREN -> {
+          Node inner = parseOr();
+          if (peek() == Kind.RPAREN) {
+            pos++;
+          }
+          yield inner;
+        }
+        case FIELD -> new Field(t.field, t.text);
+        default -> parseProximity(t);
+      };
+    }
+
+    /* A word or phrase, with any NEAR/k chain after it, as one PositionalQuery. */
+    private Node parseProximity(Token first) {
+      StringBuilder text = new StringBuilder(source(first));
+      while (peek() == Kind.NEAR && pos + 1 < tokens.size()
+          && (tokens.get(pos + 1).kind == Kind.WORD || tokens.get(pos + 1).kind == Kind.PHRASE)) {
+        text.append(' ').append(tokens.get(pos).text).append(' ').append(source(tokens.get(pos + 1)));
+        pos += 2;
+      }
+      PositionalQuery query = PositionalQuery.parse(text.toString(), analyzer);
+      List<String> terms = query.terms();
+      if (terms.isEmpty()) {
+        return null;
+      }
+      if (query.positional()) {
+        return new Positional(query, text.toString().toLowerCase(Locale.ROOT).replaceAll("\\s+", " "));
+      }
+      List<Node> children = new ArrayList<>();
+      for (String term : terms) {
+        children.add(new Term(term));
+      }
+      return combine(children, true);
+    }
+
+    private static String source(Token t) {
+      return t.kind == Kind.PHRASE ? '"' + t.text + '"' : t.text;
+    }
+
+    private static void addIfPresent(List<Node> nodes, Node node) {
+      if (node != null) {
+        nodes.add(node);
+      }
+    }
+
+    private static Node combine(List<Node> children, boolean and) {
+      if (children.isEmpty()) {
+        return null;
+      }
+      if (children.size() == 1) {
+        return children.get(0);
+      }
+      return and ? new And(children) : new Or(children);
+    }
+  }
+
+  // ---------- canonical form ----------
+
+  /*
+   * Normalized text of the query: nested ANDs and ORs flattened, their clauses sorted
+   * and deduplicated, terms as analyzed. Equal for queries that always match the same books.
+   */
+  public String canonical() {
+    return root == null ? "" : canonical(root);
+  }
+
+  private static String canonical(Node node) {
+    if (node instanceof Term t) {
+      return t.term;
+    }
+    if (node instanceof Field f) {
+      return f.name + ":\"" + f.value.toLowerCase(Locale.ROOT) + "\"";
+    }
+    if (node instanceof Positional p) {
+      return "{" + p.text + "}";
+    }
+    if (node instanceof Not not) {
+      return "NOT " + canonical(not.child);
+    }
+    if (node instanceof None) {
+      return "NONE";
+    }
+    boolean and = node instanceof And;
+    Set<String> clauses = new TreeSet<>();
+    for (Node child : flatten(node)) {
+      clauses.add(canonical(child));
+    }
+    return clauses.size() == 1 ? clauses.iterator().next()
+        : "(" + String.join(and ? " AND " : " OR ", clauses) + ")";
+  }
+
+  /* Children of an And or Or, with nested nodes of the same kind spliced in. */
+  private static List<Node> flatten(Node node) {
+    List<Node> out = new ArrayList<>();
+    List<Node> children = node instanceof And a ? a.children : ((Or) node).children;
+    for (Node child : children) {
+      if (child.getClass() == node.getClass()) {
+        out.addAll(flatten(child));
+      } else {
+        out.add(child);
+      }
+    }
+    return out;
+  }
+
+  /* Every term whose postings evaluation needs. */
+  public Set<String> terms() {
+    Set<String> terms = new LinkedHashSet<>();
+    if (root != null) {
+      collectTerms(root, terms);
+    }
+    return terms;
+  }
+
+  private static void collectTerms(Node node, Set<String> terms) {
+    if (node instanceof Term t) {
+      terms.add(t.term);
+    } else if (node instanceof Positional p) {
+      terms.addAll(p.query.terms());
+    } else if (node instanceof Not not) {
+      collectTerms(not.child, terms);
+    } else if (node instanceof And || node instanceof Or) {
+      for (Node child : flatten(node)) {
+        collectTerms(child, terms);
+      }
+    }
+  }
+
+  // ---------- planning and evaluation ----------
+
+  /* Sorted ids of the matching books. */
+  public int[] evaluate(Source source) {
+    if (root == null) {
+      return new int[0];
+    }
+    Evaluation evaluation = new Evaluation(source, source.postings(terms()));
+    Node plan = evaluation.plan(root);
+    System.out.println("Query plan: " + evaluation.describe(plan));
+    return evaluation.eval(plan);
+  }
+
+  private static final class Evaluation {
+    private final Source source;
+    private final Map<String, int[]> postings;
+    private int[] universe;
+
+    Evaluation(Source source, Map<String, int[]> postings) {
+      this.source = source;
+      this.postings = postings;
+    }
+
+    private int[] postings(String term) {
+      return postings.getOrDefault(term, new int[0]);
+    }
+
+    private int[] universe() {
+      if (universe == null) {
+        universe = source.metadata(List.of(), null);
+      }
+      return universe;
+    }
+
+    /*
+     * Simplified tree: unknown terms and phrases become NONE, which empties an AND and
+     * drops out of an OR; nested nodes are flattened and duplicates removed; AND
+     * children are ordered postings first (rarest first), then exclusions, then the
+     * metadata and positional checks.
+     */
+    Node plan(Node node) {
+      if (node instanceof Term t) {
+        return postings(t.term).length == 0 ? NONE : t;
+      }
+      if (node instanceof Positional p) {
+        for (String term : p.query.terms()) {
+          if (postings(term).length == 0) {
+            return NONE;
+          }
+        }
+        return p;
+      }
+      if (node instanceof Not not) {
+        return new Not(plan(not.child));
+      }
+      if (node instanceof Or) {
+        Map<String, Node> children = new LinkedHashMap<>();
+        for (Node child : flatten(node)) {
+          Node planned = plan(child);
+          List<Node> parts = planned instanceof Or ? flatten(planned) : List.of(planned);
+          for (Node part : parts) {
+            if (!(part instanceof None)) {
+              children.putIfAbsent(canonical(part), part);
+            }
+          }
+        }
+        if (children.isEmpty()) {
+          return NONE;
+        }
+        List<Node> kept = absorb(children);
+        return kept.size() == 1 ? kept.get(0) : new Or(kept);
+      }
+      if (node instanceof And) {
+        Map<String, Node> children = new LinkedHashMap<>();
+        for (Node child : flatten(node)) {
+          Node planned = plan(child);
+          if (planned instanceof None) {
+            return NONE;
+          }
+          List<Node> parts = planned instanceof And ? flatten(planned) : List.of(planned);
+          for (Node part : parts) {
+            if (!(part instanceof Not not && not.child instanceof None)) {
+              children.putIfAbsent(canonical(part), part);
+            }
+          }
+        }
+        if (children.isEmpty()) {
+          return new Not(NONE);
+        }
+        List<Node> ordered = new ArrayList<>(children.values());
+        ordered.sort(Comparator.comparingInt(Evaluation::stage).thenComparingLong(this::cost));
+        return ordered.size() == 1 ? ordered.get(0) : new And(ordered);
+      }
+      return node;
+    }
+
+    /* Position of a child within its AND: postings, exclusions, metadata, positions. */
+    private static int stage(Node node) {
+      if (node instanceof Not not) {
+        return not.child instanceof Field ? 2 : 1;
+      }
+      if (node instanceof Field) {
+        return 2;
+      }
+      return node instanceof Positional ? 3 : 0;
+    }
+
+    /* Upper bound of the matches, from document frequencies; unknown for metadata. */
+    private long cost(Node node) {
+      if (node instanceof Term t) {
+        return postings(t.term).length;
+      }
+      if (node instanceof Positional p) {
+        long min = Long.MAX_VALUE;
+        for (String term : p.query.terms()) {
+          min = Math.min(min, postings(term).length);
+        }
+        return min;
+      }
+      if (node instanceof Or or) {
+        long sum = 0;
+        for (Node child : or.children) {
+          sum = Math.min(Long.MAX_VALUE / 2, sum + cost(child));
+        }
+        return sum;
+      }
+      if (node instanceof And and) {
+        long min = Long.MAX_VALUE;
+        for (Node child : and.children) {
+          if (stage(child) == 0 || child instanceof Positional) {
+            min = Math.min(min, cost(child));
+          }
+        }
+        return min;
+      }
+      return node instanceof None ? 0 : Long.MAX_VALUE;
+    }
+
+    int[] eval(Node node) {
+      if (node instanceof None) {
+        return new int[0];
+      }
+      if (node instanceof Term t) {
+        return postings(t.term);
+      }
+      if (node instanceof And and) {
+        return evalAnd(and.children);
+      }
+      if (node instanceof Positional || node instanceof Field) {
+        return evalAnd(List.of(node));
+      }
+      return PostingLists.drain(iterator(node));
+    }
+
+    private DocIterator iterator(Node node) {
+      if (node instanceof Term t) {
+        return new ArrayIterator(postings(t.term));
+      }
+      if (node instanceof Or or) {
+        List<DocIterator> children = new ArrayList<>();
+        for (Node child : or.children) {
+          children.add(iterator(child));
+        }
+        return new OrIterator(children);
+      }
+      if (node instanceof Not not) {
+        return new AndNotIterator(new ArrayIterator(universe()), iterator(not.child));
+      }
+      return new ArrayIterator(eval(node));
+    }
+
+    /*
+     * Intersects the postings children and subtracts the exclusions lazily; the
+     * metadata clauses then run as one query restricted to the surviving candidates,
+     * and phrases/NEAR are checked last.
+     */
+    private int[] evalAnd(List<Node> children) {
+      List<DocIterator> include = new ArrayList<>();
+      List<DocIterator> exclude = new ArrayList<>();
+      List<Field> fields = new ArrayList<>();
+      List<Field> excludedFields = new ArrayList<>();
+      List<PositionalQuery> checks = new ArrayList<>();
+      for (Node child : children) {
+        if (child instanceof Field f) {
+          fields.add(f);
+        } else if (child instanceof Not not && not.child instanceof Field f) {
+          excludedFields.add(f);
+        } else if (child instanceof Not not) {
+          exclude.add(iterator(not.child));
+        } else if (child instanceof Positional p) {
+          for (String term : p.query.terms()) {
+            include.add(new ArrayIterator(postings(term)));
+          }
+          checks.add(p.query);
+        } else {
+          include.add(iterator(child));
+        }
+      }
+
+      DocIterator it;
+      if (!include.isEmpty()) {
+        it = include.size() == 1 ? include.get(0) : new AndIterator(include);
+      } else if (!fields.isEmpty()) {
+        it = new ArrayIterator(source.metadata(fields, null));
+        fields.clear();
+      } else {
+        it = new ArrayIterator(universe());
+      }
+      if (!exclude.isEmpty()) {
+        it = new AndNotIterator(it, exclude.size() == 1 ? exclude.get(0) : new OrIterator(exclude));
+      }
+      int[] candidates = PostingLists.drain(it);
+
+      if (!fields.isEmpty() && candidates.length > 0) {
+        candidates = source.metadata(fields, candidates);
+      }
+      for (Field f : excludedFields) {
+        if (candidates.length == 0) {
+          break;
+        }
+        candidates = PostingLists.difference(candidates, source.metadata(List.of(f), candidates));
+      }
+      for (PositionalQuery check : checks) {
+        if (candidates.length == 0) {
+          break;
+        }
+        candidates = source.positional(check, candidates);
+      }
+      return candidates;
+    }
+
+    /* The plan with the document frequency of each postings clause, for the log. */
+    String describe(Node node) {
+      if (node instanceof And || node instanceof Or) {
+        List<Node> children = node instanceof And a ? a.children : ((Or) node).children;
+        List<String> parts = new ArrayList<>();
+        for (Node child : children) {
+          parts.add(describe(child));
+        }
+        return "(" + String.join(node instanceof And ? " AND " : " OR ", parts) + ")";
+      }
+      if (node instanceof Not not) {
+        return "NOT " + describe(not.child);
+      }
+      if (node instanceof Term || node instanceof Positional) {
+        return canonical(node) + "[" + cost(node) + "]";
+      }
+      return canonical(node);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package bigdatastage2;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbox of book changes (BigData.book_changes).
+ *
+ * The ingestion service appends one event per stored book: {seq, book_id,
+ * content_hash, version, ts}. Sequence numbers come from a counter document, so
+ * consumers can tail the feed by "seq greater than my checkpoint". A seq reserved for
+ * a write that failed is filled with a no-op event {seq, noop: true, ts}, which
+ * consumers skip, so the feed stays gap-free without them waiting the gap out.
+ */
+public class ChangeFeed {
+
+  private static final String COUNTER_ID = "book_changes";
+
+  private final MongoCollection<Document> events;
+  private final MongoCollection<Document> counters;
+  private boolean changeStreamsAvailable = true;
+
+  public ChangeFeed(MongoDatabase booksDb) {
+    this.events = booksDb.getCollection("book_changes");
+    this.counters = booksDb.getCollection("counters");
+    events.createIndex(Indexes.ascending("seq"), new IndexOptions().unique(true));
+  }
+
+  // ---------- producer ----------
+
+  /* Reserves n consecutive sequence numbers and returns the first one. */
+  public long reserve(int n) {
+    Document counter = counters.findOneAndUpdate(Filters.eq("_id", COUNTER_ID), Updates.inc("seq", (long) n),
+        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    return counter.get("seq", Number.class).longValue() - n + 1;
+  }
+
+  public static Document event(long seq, int bookId, String contentHash) {
+    return new Document("seq", seq)
+        .append("book_id", bookId)
+        .append("content_hash", contentHash)
+        .append("version", seq)
+        .append("ts", new Date());
+  }
+
+  /* Placeholder for a reserved seq whose book was not stored. */
+  public static Document noop(long seq) {
+    return new Document("seq", seq)
+        .append("noop", true)
+        .append("ts", new Date());
+  }
+
+  public static boolean isNoop(Document event) {
+    return event.getBoolean("noop", false);
+  }
+
+  public void publish(List<Document> batch) {
+    if (!batch.isEmpty()) {
+      events.insertMany(batch);
+    }
+  }
+
+  // ---------- consumer ----------
+
+  /* Events with seq > afterSeq in feed order. */
+  public List<Document> readAfter(long afterSeq, int limit) {
+    return events.find(Filters.gt("seq", afterSeq))
+        .sort(Sorts.ascending("seq"))
+        .limit(limit)
+        .into(new ArrayList<>());
+  }
+
+  /*
+   * Blocks until an event with seq > afterSeq is inserted or the timeout passes.
+   * Uses a change stream when the deployment supports it (Atlas does); otherwise
+   * it simply waits for the timeout.
+   */
+  public void awaitNew(long afterSeq, long timeoutMs) throws InterruptedException {
+    if (changeStreamsAvailable) {
+      List<Bson> pipeline = List.of(Aggregates.match(Filters.and(
+          Filters.eq("operationType", "insert"),
+          Filters.gt("fullDocument.seq", afterSeq))));
+      try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = events.watch(pipeline)
+          .maxAwaitTime(timeoutMs, TimeUnit.MILLISECONDS)
+          .cursor()) {
+        // an event may have arrived before the stream was opened
+        if (!readAfter(afterSeq, 1).isEmpty()) {
+          return;
+        }
+        cursor.tryNext();
+        return;
+      } catch (MongoException e) {
+        System.err.println("Change streams unavailable, falling back to timed waits: " + e.getMessage());
+        changeStreamsAvailable = false;
+      }
+    }
+    Thread.sleep(timeoutMs);
+  }
+
+  // ---------- helpers ----------
+
+  /* Short, stable fingerprint of a book's text. */
+  public static String contentHash(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(hash, 0, 16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
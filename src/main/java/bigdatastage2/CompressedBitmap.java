@@ -0,0 +1,450 @@
+package bigdatastage2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints (book ids), organised like a roaring bitmap.
+ *
+ * Ids are grouped by their upper 16 bits; each group is a container holding the
+ * lower 16 bits either as a sorted char array (up to 4096 values, 2 bytes each) or
+ * as a 65536-bit bitmap (8 KB). Dense id ranges therefore cost about one bit per id
+ * and sparse ones two bytes per id.
+ *
+ * Not thread-safe; callers synchronize.
+ */
+public class CompressedBitmap {
+
+  private static final int ARRAY_MAX = 4096;
+
+  private char[] keys = new char[4];
+  private Container[] containers = new Container[4];
+  private int size = 0;
+
+  // ---------- single values ----------
+
+  /* Adds the id; returns false if it was already present. */
+  public boolean add(int id) {
+    char key = (char) (id >>> 16);
+    int i = find(key);
+    if (i < 0) {
+      i = -i - 1;
+      insertContainer(i, key, new Container());
+    }
+    return containers[i].add((char) id);
+  }
+
+  /* Removes the id; returns false if it was not present. */
+  public boolean remove(int id) {
+    int i = find((char) (id >>> 16));
+    if (i < 0 || !containers[i].remove((char) id)) {
+      return false;
+    }
+    if (containers[i].cardinality == 0) {
+      removeContainer(i);
+    }
+    return true;
+  }
+
+  public boolean contains(int id) {
+    int i = find((char) (id >>> 16));
+    return i >= 0 && containers[i].contains((char) id);
+  }
+
+  public long cardinality() {
+    long n = 0;
+    for (int i = 0; i < size; i++) {
+      n += containers[i].cardinality;
+    }
+    return n;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    keys = new char[4];
+    containers = new Container[4];
+    size = 0;
+  }
+
+  /* All ids in ascending order. */
+  public int[] toArray() {
+    int[] out = new int[(int) cardinality()];
+    int pos = 0;
+    for (int i = 0; i < size; i++) {
+      pos = containers[i].copyTo(keys[i] << 16, out, pos);
+    }
+    return out;
+  }
+
+  public CompressedBitmap copy() {
+    CompressedBitmap c = new CompressedBitmap();
+    c.keys = Arrays.copyOf(keys, Math.max(4, size));
+    c.containers = new Container[c.keys.length];
+    for (int i = 0; i < size; i++) {
+      c.containers[i] = containers[i].copy();
+    }
+    c.size = size;
+    return c;
+  }
+
+  // ---------- set operations ----------
+
+  public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap out = new CompressedBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        Container c = Container.and(a.containers[i], b.containers[j]);
+        if (c.cardinality > 0) {
+          out.insertContainer(out.size, a.keys[i], c);
+        }
+        i++;
+        j++;
+      }
+    }
+    return out;
+  }
+
+  public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap out = new CompressedBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+        out.insertContainer(out.size, a.keys[i], a.containers[i].copy());
+        i++;
+      } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+        out.insertContainer(out.size, b.keys[j], b.containers[j].copy());
+        j++;
+      } else {
+        out.insertContainer(out.size, a.keys[i], Container.or(a.containers[i], b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return out;
+  }
+
+  /* Ids in a but not in b. */
+  public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap out = new CompressedBitmap();
+    int j = 0;
+    for (int i = 0; i < a.size; i++) {
+      while (j < b.size && b.keys[j] < a.keys[i]) {
+        j++;
+      }
+      Container c = j < b.size && b.keys[j] == a.keys[i]
+          ? Container.andNot(a.containers[i], b.containers[j])
+          : a.containers[i].copy();
+      if (c.cardinality > 0) {
+        out.insertContainer(out.size, a.keys[i], c);
+      }
+    }
+    return out;
+  }
+
+  // ---------- serialization ----------
+
+  /* [container count] then per container [key][cardinality][type][values or 1024 words] */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      Container c = containers[i];
+      out.writeChar(keys[i]);
+      out.writeInt(c.cardinality);
+      if (c.bits == null) {
+        out.writeByte(0);
+        for (int k = 0; k < c.cardinality; k++) {
+          out.writeChar(c.array[k]);
+        }
+      } else {
+        out.writeByte(1);
+        for (long word : c.bits) {
+          out.writeLong(word);
+        }
+      }
+    }
+  }
+
+  public static CompressedBitmap readFrom(DataInput in) throws IOException {
+    CompressedBitmap b = new CompressedBitmap();
+    int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      char key = in.readChar();
+      Container c = new Container();
+      c.cardinality = in.readInt();
+      if (in.readByte() == 0) {
+        c.array = new char[Math.max(4, c.cardinality)];
+        for (int k = 0; k < c.cardinality; k++) {
+          c.array[k] = in.readChar();
+        }
+      } else {
+        c.array = null;
+        c.bits = new long[1024];
+        for (int k = 0; k < 1024; k++) {
+          c.bits[k] = in.readLong();
+        }
+      }
+      b.insertContainer(b.size, key, c);
+    }
+    return b;
+  }
+
+  // ---------- container directory ----------
+
+  private int find(char key) {
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid] < key) {
+        lo = mid + 1;
+      } else if (keys[mid] > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  private void insertContainer(int i, char key, Container c) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      containers = Arrays.copyOf(containers, size * 2);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(containers, i, containers, i + 1, size - i);
+    keys[i] = key;
+    containers[i] = c;
+    size++;
+  }
+
+  private void removeContainer(int i) {
+    System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+    System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+    containers[--size] = null;
+  }
+
+  /* Lower 16 bits of the ids in one group, as a sorted array or a bitmap. */
+  private static final class Container {
+    char[] array = new char[4];
+    long[] bits;
+    int cardinality;
+
+    boolean contains(char v) {
+      if (bits != null) {
+        return (bits[v >>> 6] & (1L << v)) != 0;
+      }
+      return Arrays.binarySearch(array, 0, cardinality, v) >= 0;
+    }
+
+    boolean add(char v) {
+      if (bits != null) {
+        long before = bits[v >>> 6];
+        bits[v >>> 6] = before | (1L << v);
+        if (before == bits[v >>> 6]) {
+          return false;
+        }
+        cardinality++;
+        return true;
+      }
+      int pos = Arrays.binarySearch(array, 0, cardinality, v);
+      if (pos >= 0) {
+        return false;
+      }
+      pos = -pos - 1;
+      if (cardinality == ARRAY_MAX) {
+        toBits();
+        return add(v);
+      }
+      if (cardinality == array.length) {
+        array = Arrays.copyOf(array, Math.min(ARRAY_MAX, cardinality * 2));
+      }
+      System.arraycopy(array, pos, array, pos + 1, cardinality - pos);
+      array[pos] = v;
+      cardinality++;
+      return true;
+    }
+
+    boolean remove(char v) {
+      if (bits != null) {
+        long before = bits[v >>> 6];
+        bits[v >>> 6] = before & ~(1L << v);
+        if (before == bits[v >>> 6]) {
+          return false;
+        }
+        if (--cardinality <= ARRAY_MAX / 2) {
+          toArray();
+        }
+        return true;
+      }
+      int pos = Arrays.binarySearch(array, 0, cardinality, v);
+      if (pos < 0) {
+        return false;
+      }
+      System.arraycopy(array, pos + 1, array, pos, cardinality - pos - 1);
+      cardinality--;
+      return true;
+    }
+
+    private void toBits() {
+      bits = new long[1024];
+      for (int k = 0; k < cardinality; k++) {
+        bits[array[k] >>> 6] |= 1L << array[k];
+      }
+      array = null;
+    }
+
+    private void toArray() {
+      char[] values = new char[Math.max(4, cardinality)];
+      int n = 0;
+      for (int w = 0; w < 1024; w++) {
+        long word = bits[w];
+        while (word != 0) {
+          values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      array = values;
+      bits = null;
+    }
+
+    int copyTo(int base, int[] out, int pos) {
+      if (bits == null) {
+        for (int k = 0; k < cardinality; k++) {
+          out[pos++] = base | array[k];
+        }
+        return pos;
+      }
+      for (int w = 0; w < 1024; w++) {
+        long word = bits[w];
+        while (word != 0) {
+          out[pos++] = base | (w * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return pos;
+    }
+
+    Container copy() {
+      Container c = new Container();
+      c.cardinality = cardinality;
+      if (bits != null) {
+        c.array = null;
+        c.bits = bits.clone();
+      } else {
+        c.array = Arrays.copyOf(array, Math.max(4, cardinality));
+      }
+      return c;
+    }
+
+    /* Switches a bitmap result to an array when it is small enough. */
+    private static Container fromBits(long[] bits) {
+      Container c = new Container();
+      c.array = null;
+      c.bits = bits;
+      for (long word : bits) {
+        c.cardinality += Long.bitCount(word);
+      }
+      if (c.cardinality <= ARRAY_MAX) {
+        c.toArray();
+      }
+      return c;
+    }
+
+    static Container and(Container a, Container b) {
+      if (a.bits != null && b.bits != null) {
+        long[] words = new long[1024];
+        for (int w = 0; w < 1024; w++) {
+          words[w] = a.bits[w] & b.bits[w];
+        }
+        return fromBits(words);
+      }
+      if (a.bits != null) {
+        return and(b, a);
+      }
+      // a is an array: keep the values also in b
+      Container c = new Container();
+      c.array = new char[Math.max(4, a.cardinality)];
+      for (int k = 0; k < a.cardinality; k++) {
+        if (b.contains(a.array[k])) {
+          c.array[c.cardinality++] = a.array[k];
+        }
+      }
+      return c;
+    }
+
+    static Container or(Container a, Container b) {
+      if (a.bits == null && b.bits == null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+        Container c = new Container();
+        c.array = new char[Math.max(4, a.cardinality + b.cardinality)];
+        int i = 0;
+        int j = 0;
+        while (i < a.cardinality || j < b.cardinality) {
+          char v;
+          if (j >= b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+            v = a.array[i++];
+          } else if (i >= a.cardinality || a.array[i] > b.array[j]) {
+            v = b.array[j++];
+          } else {
+            v = a.array[i++];
+            j++;
+          }
+          c.array[c.cardinality++] = v;
+        }
+        return c;
+      }
+      long[] words = new long[1024];
+      orInto(a, words);
+      orInto(b, words);
+      return fromBits(words);
+    }
+
+    static Container andNot(Container a, Container b) {
+      if (a.bits == null) {
+        Container c = new Container();
+        c.array = new char[Math.max(4, a.cardinality)];
+        for (int k = 0; k < a.cardinality; k++) {
+          if (!b.contains(a.array[k])) {
+            c.array[c.cardinality++] = a.array[k];
+          }
+        }
+        return c;
+      }
+      long[] words = a.bits.clone();
+      if (b.bits != null) {
+        for (int w = 0; w < 1024; w++) {
+          words[w] &= ~b.bits[w];
+        }
+      } else {
+        for (int k = 0; k < b.cardinality; k++) {
+          words[b.array[k] >>> 6] &= ~(1L << b.array[k]);
+        }
+      }
+      return fromBits(words);
+    }
+
+    private static void orInto(Container c, long[] words) {
+      if (c.bits != null) {
+        for (int w = 0; w < 1024; w++) {
+          words[w] |= c.bits[w];
+        }
+      } else {
+        for (int k = 0; k < c.cardinality; k++) {
+          words[c.array[k] >>> 6] |= 1L << c.array[k];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package bigdatastage2;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Tuning knobs shared by all services.
+ * Values are read from the .env file (or the process environment) and every knob
+ * has a default, so a missing entry never prevents a service from starting.
+ */
+public class Config {
+
+  private static final Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+
+  public static String get(String key, String def) {
+    String value = dotenv.get(key);
+    return value == null || value.isBlank() ? def : value.trim();
+  }
+
+  public static int getInt(String key, int def) {
+    try {
+      return Integer.parseInt(get(key, String.valueOf(def)));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number for " + key + ", using default " + def);
+      return def;
+    }
+  }
+
+  public static long getLong(String key, long def) {
+    try {
+      return Long.parseLong(get(key, String.valueOf(def)));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number for " + key + ", using default " + def);
+      return def;
+    }
+  }
+
+  public static boolean getBool(String key, boolean def) {
+    return Boolean.parseBoolean(get(key, String.valueOf(def)));
+  }
+}
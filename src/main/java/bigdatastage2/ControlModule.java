@@ -1,5 +1,7 @@
 package bigdatastage2;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -9,12 +11,14 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
 import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Orchestriert: Ingestion -> (warten) -> Indexing.
- * Hält Buch über bereits verarbeitete book_ids in indexed_books.txt.
+ * Ob ein Buch schon indexiert ist, fragt es über GET /index/contains beim Indexer ab.
  */
 public class ControlModule {
 
@@ -24,12 +28,10 @@ public class ControlModule {
 
   private String ingestionBase;
   private String indexingBase;
-  private final Path processedListFile;
 
-  public ControlModule(String ingestionBase, String indexingBase, Path processedListFile) {
+  public ControlModule(String ingestionBase, String indexingBase) {
     this.ingestionBase = stripTrailingSlash(ingestionBase);
     this.indexingBase = stripTrailingSlash(indexingBase);
-    this.processedListFile = processedListFile;
   }
 
   private static String stripTrailingSlash(String s) {
@@ -51,8 +53,7 @@ public class ControlModule {
   }
 
   public String indexBook(int bookId) throws Exception {
-    boolean indexed = Files.lines(processedListFile).anyMatch(line -> line.equals(Integer.toString(bookId)));
-    if (indexed) {
+    if (isIndexed(bookId)) {
       return "Book " + bookId + " is already indexed.";
     }
     HttpResponse<String> indexResp = sendPost(indexingBase + "/index/update/" + bookId, null, 10000);
@@ -62,6 +63,28 @@ public class ControlModule {
     return "Indexing completed for book ID: " + bookId;
   }
 
+  public boolean isIndexed(int bookId) throws Exception {
+    return indexedAmong(Set.of(bookId)).contains(bookId);
+  }
+
+  /* Which of the given books the indexer has already indexed, in one request. */
+  public Set<Integer> indexedAmong(Set<Integer> bookIds) throws Exception {
+    Set<Integer> indexed = new HashSet<>();
+    if (bookIds.isEmpty()) {
+      return indexed;
+    }
+    String ids = bookIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+    HttpResponse<String> resp = sendGet(indexingBase + "/index/contains?ids=" + ids, 10);
+    if (resp.statusCode() != 200) {
+      throw new IOException("Index lookup failed with status code: " + resp.statusCode());
+    }
+    JsonArray found = JsonParser.parseString(resp.body()).getAsJsonObject().getAsJsonArray("indexed");
+    for (JsonElement e : found) {
+      indexed.add(e.getAsInt());
+    }
+    return indexed;
+  }
+
   // TODO: Search function
 
   // ---------- helpers ----------
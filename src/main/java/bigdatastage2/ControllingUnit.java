@@ -1,9 +1,6 @@
 package bigdatastage2;
 
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import io.github.cdimascio.dotenv.Dotenv;
 import java.util.*;
 
@@ -25,9 +22,8 @@ public class ControllingUnit {
 
     String ingestionBase = dotenv.get("INGESTING_API");
     String indexingBase = dotenv.get("INDEXING_API");
-    String processedPath = dotenv.get("INDEXED_FILES");
 
-    ControlModule control = new ControlModule(ingestionBase, indexingBase, Path.of(processedPath));
+    ControlModule control = new ControlModule(ingestionBase, indexingBase);
     Scanner scanner = new Scanner(System.in);
 
     System.out.println("Please enter an ID of a book, you want to process: ");
@@ -47,12 +43,11 @@ public class ControllingUnit {
       System.out.println(result);
       result = control.indexBook(bookId);
       System.out.println(result);
-      for (String line : Files.readAllLines(Path.of(processedPath), StandardCharsets.UTF_8)) {
-        if (line.trim().equals(String.valueOf(bookId)))
-          System.out.println("Book: " + bookId + " got indexed successfully!");
-          return;
+      if (control.isIndexed(bookId)) {
+        System.out.println("Book: " + bookId + " got indexed successfully!");
+        return;
       }
-      throw new Exception("Book ID " + bookId + " was not found in the processed list.");
+      throw new Exception("Book ID " + bookId + " is not reported as indexed by the index service.");
     } catch (Exception e) {
       System.err.println("An error occured during processing: " + e.getMessage());
     }
@@ -0,0 +1,279 @@
+package bigdatastage2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Local datalake for raw book text.
+ *
+ * Layout:
+ * datalake/index.log - append-only id -> (date, segment, offset) entries, latest wins
+ * datalake/20251017/segment-000001.dat - append-only segment files holding book records
+ *
+ * A record is [magic][book id][content length][footer length][content][footer], both
+ * texts encoded with BookCodec. One process (the ingestion service) appends, any number
+ * of processes read; readers pick up new index entries on refresh() and read records
+ * through memory-mapped segments.
+ */
+public class Datalake {
+
+  public static final String STORE_MONGO = "mongo";
+  public static final String STORE_DATALAKE = "datalake";
+
+  private static final int RECORD_MAGIC = 0x424F4F4B; // "BOOK"
+  private static final int RECORD_HEADER = 16;
+  private static final int INDEX_ENTRY = 24;
+  private static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+  /* Location of one book record. */
+  public static class Entry {
+    final int bookId;
+    final int day;
+    final int segment;
+    final long offset;
+    final int length;
+
+    Entry(int bookId, int day, int segment, long offset, int length) {
+      this.bookId = bookId;
+      this.day = day;
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final Path root;
+  private final Path indexFile;
+  private final long segmentLimit;
+  private final Map<Integer, Entry> entries = new HashMap<>();
+  private final Map<String, MappedByteBuffer> mapped = new HashMap<>();
+  private long indexPosition = 0;
+
+  // writer state, only used by the appending process
+  private FileChannel segmentChannel;
+  private FileChannel indexChannel;
+  private FileLock writerLock;
+  private int currentDay;
+  private int currentSegment;
+
+  private Datalake(Path root) throws IOException {
+    this.root = root;
+    this.indexFile = root.resolve("index.log");
+    this.segmentLimit = Config.getLong("DATALAKE_SEGMENT_MB", 256) * 1024 * 1024;
+    Files.createDirectories(root);
+    refresh();
+  }
+
+  /* True when raw text is kept in the datalake instead of the books collection. */
+  public static boolean enabled() {
+    return STORE_DATALAKE.equalsIgnoreCase(Config.get("BOOK_STORE", STORE_MONGO));
+  }
+
+  public static Datalake open() throws IOException {
+    return new Datalake(Paths.get(Config.get("DATALAKE_DIR", "datalake")));
+  }
+
+  // ---------- writing ----------
+
+  /* Appends a book and makes it visible to readers; the newest record of an id wins. */
+  public synchronized void append(int bookId, String content, String footer) throws IOException {
+    boolean compress = BookCodec.DEFLATE.equals(BookCodec.configuredCodec());
+    byte[] c = BookCodec.encode(content, compress);
+    byte[] f = BookCodec.encode(footer == null ? "" : footer, compress);
+    int length = RECORD_HEADER + c.length + f.length;
+
+    FileChannel segment = segmentFor(length);
+    long offset = segment.size();
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER)
+        .putInt(RECORD_MAGIC).putInt(bookId).putInt(c.length).putInt(f.length);
+    header.flip();
+    writeFully(segment, new ByteBuffer[] { header, ByteBuffer.wrap(c), ByteBuffer.wrap(f) });
+    segment.force(false);
+
+    // the index entry is written only after the record is durable
+    ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY)
+        .putInt(bookId).putInt(currentDay).putInt(currentSegment).putLong(offset).putInt(length);
+    entry.flip();
+    writeFully(indexChannel, new ByteBuffer[] { entry });
+    indexChannel.force(false);
+  }
+
+  private FileChannel segmentFor(int recordLength) throws IOException {
+    if (indexChannel == null) {
+      indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+      writerLock = FileChannel.open(root.resolve(".writer.lock"), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE).tryLock();
+      if (writerLock == null) {
+        throw new IOException("Datalake " + root + " is already opened for writing by another process");
+      }
+    }
+    int today = Integer.parseInt(LocalDate.now().format(DAY));
+    if (segmentChannel != null && today == currentDay && segmentChannel.size() + recordLength <= segmentLimit) {
+      return segmentChannel;
+    }
+    if (segmentChannel != null) {
+      segmentChannel.close();
+    }
+    if (today != currentDay) {
+      currentDay = today;
+      currentSegment = lastSegmentOf(today);
+    }
+    Path path = segmentPath(currentDay, currentSegment);
+    if (currentSegment == 0 || (Files.exists(path) && Files.size(path) + recordLength > segmentLimit)) {
+      currentSegment++;
+      path = segmentPath(currentDay, currentSegment);
+    }
+    Files.createDirectories(path.getParent());
+    segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    return segmentChannel;
+  }
+
+  private int lastSegmentOf(int day) throws IOException {
+    Path dir = root.resolve(String.valueOf(day));
+    if (!Files.isDirectory(dir)) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.map(p -> p.getFileName().toString())
+          .filter(n -> n.startsWith("segment-") && n.endsWith(".dat"))
+          .mapToInt(n -> Integer.parseInt(n.substring(8, n.length() - 4)))
+          .max().orElse(0);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer b : buffers) {
+      remaining += b.remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+  }
+
+  // ---------- reading ----------
+
+  /* Loads index entries appended since the last call. */
+  public synchronized void refresh() throws IOException {
+    if (!Files.exists(indexFile)) {
+      return;
+    }
+    try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      long complete = ch.size() - (ch.size() % INDEX_ENTRY);
+      if (complete <= indexPosition) {
+        return;
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) Math.min(complete - indexPosition, INDEX_ENTRY * 4096));
+      while (indexPosition < complete) {
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), complete - indexPosition));
+        while (buf.hasRemaining()) {
+          if (ch.read(buf, indexPosition + buf.position()) < 0) {
+            break;
+          }
+        }
+        buf.flip();
+        while (buf.remaining() >= INDEX_ENTRY) {
+          Entry e = new Entry(buf.getInt(), buf.getInt(), buf.getInt(), buf.getLong(), buf.getInt());
+          entries.put(e.bookId, e);
+          indexPosition += INDEX_ENTRY;
+        }
+      }
+    }
+  }
+
+  public synchronized boolean contains(int bookId) {
+    return entries.containsKey(bookId);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /* Book ids ordered by their position on disk, so a full scan reads segments sequentially. */
+  public synchronized List<Integer> idsInStorageOrder() {
+    List<Entry> list = new ArrayList<>(entries.values());
+    list.sort(Comparator.<Entry>comparingInt(e -> e.day)
+        .thenComparingInt(e -> e.segment)
+        .thenComparingLong(e -> e.offset));
+    List<Integer> ids = new ArrayList<>(list.size());
+    for (Entry e : list) {
+      ids.add(e.bookId);
+    }
+    return ids;
+  }
+
+  /* Returns the content of a book or null if the lake does not hold it. */
+  public String readContent(int bookId) throws IOException {
+    ByteBuffer record = record(bookId);
+    if (record == null) {
+      return null;
+    }
+    int contentLength = record.getInt(8);
+    byte[] content = new byte[contentLength];
+    record.get(RECORD_HEADER, content);
+    return BookCodec.decode(content);
+  }
+
+  public String readFooter(int bookId) throws IOException {
+    ByteBuffer record = record(bookId);
+    if (record == null) {
+      return null;
+    }
+    int contentLength = record.getInt(8);
+    byte[] footer = new byte[record.getInt(12)];
+    record.get(RECORD_HEADER + contentLength, footer);
+    return BookCodec.decode(footer);
+  }
+
+  private ByteBuffer record(int bookId) throws IOException {
+    Entry e;
+    MappedByteBuffer segment;
+    synchronized (this) {
+      e = entries.get(bookId);
+      if (e == null) {
+        return null;
+      }
+      segment = map(e);
+    }
+    ByteBuffer record = segment.slice((int) e.offset, e.length);
+    if (record.getInt(0) != RECORD_MAGIC || record.getInt(4) != bookId) {
+      throw new IOException("Corrupt datalake record for book " + bookId);
+    }
+    return record;
+  }
+
+  /* Maps a segment read-only; remaps when the record lies beyond the mapped region. */
+  private MappedByteBuffer map(Entry e) throws IOException {
+    String key = e.day + "/" + e.segment;
+    MappedByteBuffer buf = mapped.get(key);
+    if (buf == null || buf.capacity() < e.offset + e.length) {
+      try (FileChannel ch = FileChannel.open(segmentPath(e.day, e.segment), StandardOpenOption.READ)) {
+        buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+      mapped.put(key, buf);
+    }
+    return buf;
+  }
+
+  private Path segmentPath(int day, int segment) {
+    return root.resolve(String.valueOf(day)).resolve(String.format("segment-%06d.dat", segment));
+  }
+}
@@ -0,0 +1,122 @@
+package bigdatastage2;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of download validators, one small JSON file per URL.
+ *
+ * For every book that was stored we remember ETag, Last-Modified and the content
+ * hash. The next download of the same URL becomes a conditional GET; a 304 or an
+ * unchanged hash means the stored book is still current.
+ */
+public class DownloadCache {
+
+  /* Validators of one URL. */
+  public static class Entry {
+    String url;
+    String etag;
+    String lastModified;
+    String contentHash;
+  }
+
+  private static final Gson gson = new Gson();
+
+  private final Path dir;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private DownloadCache(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+  }
+
+  public static DownloadCache open() throws IOException {
+    return new DownloadCache(Paths.get(Config.get("INGEST_CACHE_DIR", "cache/downloads")));
+  }
+
+  /* Adds If-None-Match / If-Modified-Since for URLs we have stored before. */
+  public void addConditionalHeaders(String url, HttpRequest.Builder request) {
+    Entry e = lookup(url);
+    if (e == null) {
+      return;
+    }
+    if (e.etag != null) {
+      request.header("If-None-Match", e.etag);
+    }
+    if (e.lastModified != null) {
+      request.header("If-Modified-Since", e.lastModified);
+    }
+  }
+
+  /* True if the downloaded text is identical to the one stored last time. */
+  public boolean sameContent(String url, String contentHash) {
+    Entry e = lookup(url);
+    return e != null && contentHash.equals(e.contentHash);
+  }
+
+  /* Validators of a fresh response; they are only persisted once the book is stored. */
+  public static Entry fromResponse(String url, HttpResponse<?> response, String contentHash) {
+    Entry e = new Entry();
+    e.url = url;
+    e.etag = response.headers().firstValue("ETag").orElse(null);
+    e.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+    e.contentHash = contentHash;
+    return e;
+  }
+
+  public void store(Entry e) {
+    entries.put(e.url, e);
+    Path file = fileFor(e.url);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      Files.writeString(tmp, gson.toJson(e), StandardCharsets.UTF_8);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // a lost entry only costs one unconditional download
+      System.err.println("Could not write download cache entry for " + e.url + ": " + ex.getMessage());
+    }
+  }
+
+  private Entry lookup(String url) {
+    Entry e = entries.get(url);
+    if (e != null) {
+      return e;
+    }
+    Path file = fileFor(url);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try {
+      e = gson.fromJson(Files.readString(file, StandardCharsets.UTF_8), Entry.class);
+      if (e != null && url.equals(e.url)) {
+        entries.put(url, e);
+        return e;
+      }
+    } catch (Exception ex) {
+      System.err.println("Ignoring unreadable download cache entry " + file + ": " + ex.getMessage());
+    }
+    return null;
+  }
+
+  private Path fileFor(String url) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+      return dir.resolve(HexFormat.of().formatHex(hash, 0, 16) + ".json");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
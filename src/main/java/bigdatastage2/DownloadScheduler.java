@@ -0,0 +1,241 @@
+package bigdatastage2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends download requests on behalf of the ingestion service.
+ *
+ * Every request passes a per-host token bucket (requests per second) and a per-host
+ * in-flight limit, gets a timeout, and is retried with exponential backoff and jitter
+ * on 429 / 5xx / IO errors. Requests that fail permanently end up in a bounded
+ * dead-letter list. Counters are exposed through metrics().
+ */
+public class DownloadScheduler {
+
+  /* Consumes a response body while the host permit is still held. */
+  @FunctionalInterface
+  public interface BodyReader<T> {
+    T read(HttpResponse<InputStream> response) throws IOException;
+  }
+
+  /* Thrown when a request will not be retried any more. */
+  public static class PermanentFailure extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PermanentFailure(String message) {
+      super(message);
+    }
+  }
+
+  /* Classic token bucket; pause() stops refilling until a point in time (Retry-After). */
+  private static class TokenBucket {
+    private final double ratePerSec;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = 0;
+
+    TokenBucket(double ratePerSec, double capacity) {
+      this.ratePerSec = ratePerSec;
+      this.capacity = capacity;
+      this.tokens = capacity;
+    }
+
+    void acquire() throws InterruptedException {
+      while (true) {
+        long waitNanos;
+        synchronized (this) {
+          long now = System.nanoTime();
+          if (now < pausedUntil) {
+            waitNanos = pausedUntil - now;
+          } else {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerSec / 1e9);
+            lastRefill = now;
+            if (tokens >= 1) {
+              tokens -= 1;
+              return;
+            }
+            waitNanos = (long) ((1 - tokens) * 1e9 / ratePerSec);
+          }
+        }
+        Thread.sleep(Math.max(1, waitNanos / 1_000_000));
+      }
+    }
+
+    synchronized void pause(long millis) {
+      pausedUntil = Math.max(pausedUntil, System.nanoTime() + millis * 1_000_000);
+      tokens = 0;
+    }
+  }
+
+  private final HttpClient http;
+  private final double hostRate = Config.getInt("INGEST_HOST_RATE", 5);
+  private final double hostBurst = Config.getInt("INGEST_HOST_BURST", 10);
+  private final int hostConcurrency = Config.getInt("INGEST_HOST_CONCURRENCY", 8);
+  private final int maxAttempts = Config.getInt("INGEST_MAX_ATTEMPTS", 5);
+  private final long baseBackoffMs = Config.getLong("INGEST_BACKOFF_MS", 500);
+  private final long maxBackoffMs = Config.getLong("INGEST_MAX_BACKOFF_MS", 30000);
+  private final Duration requestTimeout = Duration.ofSeconds(Config.getLong("INGEST_REQUEST_TIMEOUT_S", 60));
+  private final int deadLetterLimit = Config.getInt("INGEST_DEAD_LETTER_LIMIT", 1000);
+
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+  private final Deque<Map<String, Object>> deadLetters = new ArrayDeque<>();
+
+  // metrics
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong backlog = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  public DownloadScheduler(HttpClient http) {
+    this.http = http;
+  }
+
+  /* Number of requests callers still hold back (e.g. the rest of a batch); reported as queue depth. */
+  public void addBacklog(long delta) {
+    backlog.addAndGet(delta);
+  }
+
+  /*
+   * Sends the request, retrying transient failures, and hands the final response
+   * (2xx or 304) to the reader. Anything else ends as a PermanentFailure.
+   */
+  public <T> T execute(HttpRequest request, BodyReader<T> reader) throws IOException, InterruptedException {
+    String host = request.uri().getHost();
+    TokenBucket bucket = buckets.computeIfAbsent(host, h -> new TokenBucket(hostRate, hostBurst));
+    Semaphore permits = hostPermits.computeIfAbsent(host, h -> new Semaphore(hostConcurrency));
+    HttpRequest timed = HttpRequest.newBuilder(request, (k, v) -> true).timeout(requestTimeout).build();
+
+    String lastError = null;
+    for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+      long retryAfterMs = -1;
+      waiting.incrementAndGet();
+      try {
+        permits.acquire();
+        try {
+          bucket.acquire();
+        } catch (InterruptedException e) {
+          permits.release();
+          throw e;
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+      inFlight.incrementAndGet();
+      try {
+        HttpResponse<InputStream> response = http.send(timed, HttpResponse.BodyHandlers.ofInputStream());
+        int status = response.statusCode();
+        if (status == 429 || status >= 500) {
+          response.body().close();
+          lastError = "HTTP " + status;
+          retryAfterMs = retryAfterMillis(response);
+          if (retryAfterMs > 0) {
+            bucket.pause(retryAfterMs);
+          }
+        } else if (status >= 200 && status < 300 || status == 304) {
+          try {
+            T result = reader.read(response);
+            completed.incrementAndGet();
+            return result;
+          } catch (PermanentFailure e) {
+            // the reader rejected the body itself (e.g. not a Gutenberg text), retrying will not help
+            throw deadLetter(request, e.getMessage(), attempt);
+          } finally {
+            response.body().close();
+          }
+        } else {
+          response.body().close();
+          throw deadLetter(request, "HTTP " + status, attempt);
+        }
+      } catch (PermanentFailure e) {
+        throw e;
+      } catch (IOException e) {
+        lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+      } finally {
+        inFlight.decrementAndGet();
+        permits.release();
+      }
+
+      if (attempt < maxAttempts) {
+        retried.incrementAndGet();
+        Thread.sleep(retryAfterMs > 0 ? retryAfterMs : backoff(attempt));
+      }
+    }
+    throw deadLetter(request, lastError, maxAttempts);
+  }
+
+  /* Exponential backoff with full jitter: random in [0, min(max, base * 2^(attempt-1))]. */
+  private long backoff(int attempt) {
+    long ceiling = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  private long retryAfterMillis(HttpResponse<?> response) {
+    return response.headers().firstValue("Retry-After").map(v -> {
+      try {
+        return Math.min(maxBackoffMs, Long.parseLong(v.trim()) * 1000);
+      } catch (NumberFormatException e) {
+        return -1L; // HTTP-date form, fall back to our own backoff
+      }
+    }).orElse(-1L);
+  }
+
+  private PermanentFailure deadLetter(HttpRequest request, String error, int attempts) {
+    failed.incrementAndGet();
+    Map<String, Object> letter = new LinkedHashMap<>();
+    letter.put("url", request.uri().toString());
+    letter.put("error", error);
+    letter.put("attempts", attempts);
+    letter.put("failed_at", Instant.now().toString());
+    synchronized (deadLetters) {
+      deadLetters.addLast(letter);
+      while (deadLetters.size() > deadLetterLimit) {
+        deadLetters.removeFirst();
+      }
+    }
+    return new PermanentFailure("Failed to download " + request.uri() + " after " + attempts + " attempt(s): "
+        + error);
+  }
+
+  public List<Map<String, Object>> deadLetters() {
+    synchronized (deadLetters) {
+      return new ArrayList<>(deadLetters);
+    }
+  }
+
+  public Map<String, Object> metrics() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("queued", backlog.get() + waiting.get());
+    m.put("waiting_for_slot", waiting.get());
+    m.put("in_flight", inFlight.get());
+    m.put("completed", completed.get());
+    m.put("retried", retried.get());
+    m.put("failed", failed.get());
+    synchronized (deadLetters) {
+      m.put("dead_letters", deadLetters.size());
+    }
+    m.put("host_rate_per_sec", hostRate);
+    m.put("host_concurrency", hostConcurrency);
+    return m;
+  }
+}
@@ -0,0 +1,161 @@
+package bigdatastage2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass parser for Project Gutenberg plain-text books.
+ * Reads the book as a stream, picks the header fields (title, author, release date,
+ * language) on the way and splits content from footer, so the text is copied once
+ * into the content buffer instead of being split and re-scanned per field.
+ */
+public class GutenbergParser {
+
+  private static final String START_MARKER = "*** START OF THE PROJECT GUTENBERG EBOOK";
+  private static final String END_MARKER = "*** END OF THE PROJECT GUTENBERG EBOOK";
+
+  private enum Section {
+    HEADER, CONTENT, FOOTER
+  }
+
+  /* The text does not follow the Project Gutenberg layout. */
+  public static class FormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FormatException(String message) {
+      super(message);
+    }
+  }
+
+  /* Result of parsing one book. */
+  public static class ParsedBook {
+    public String title = "";
+    public String author = "";
+    public String releaseDate = "";
+    public String language = "";
+    public String content;
+    public String footer;
+  }
+
+  private final ParsedBook book = new ParsedBook();
+  private final StringBuilder content = new StringBuilder(1 << 16);
+  private final StringBuilder footer = new StringBuilder(1 << 12);
+  private Section section = Section.HEADER;
+  private boolean expectUpdatedLine = false;
+
+  private GutenbergParser() {
+  }
+
+  public static ParsedBook parse(InputStream in) throws IOException {
+    GutenbergParser parser = new GutenbergParser();
+    parser.readLines(new InputStreamReader(in, StandardCharsets.UTF_8));
+    return parser.finish();
+  }
+
+  /* Splits the stream into lines using one reusable line buffer. */
+  private void readLines(Reader reader) throws IOException {
+    char[] buf = new char[8192];
+    StringBuilder line = new StringBuilder(256);
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      int from = 0;
+      for (int i = 0; i < n; i++) {
+        if (buf[i] == '\n') {
+          line.append(buf, from, i - from);
+          handleLine(line);
+          line.setLength(0);
+          from = i + 1;
+        }
+      }
+      line.append(buf, from, n - from);
+    }
+    if (line.length() > 0) {
+      handleLine(line);
+    }
+  }
+
+  private void handleLine(StringBuilder line) {
+    int len = line.length();
+    if (len > 0 && line.charAt(len - 1) == '\r') {
+      line.setLength(len - 1);
+    }
+    switch (section) {
+      case HEADER -> handleHeaderLine(line);
+      case CONTENT -> handleContentLine(line);
+      case FOOTER -> footer.append(line).append('\n');
+    }
+  }
+
+  private void handleHeaderLine(StringBuilder line) {
+    if (expectUpdatedLine) {
+      expectUpdatedLine = false;
+      String trimmed = line.toString().trim();
+      if (trimmed.startsWith("Most recently updated:")) {
+        book.releaseDate += " | " + trimmed;
+        return;
+      }
+    }
+    if (startsWith(line, START_MARKER)) {
+      section = Section.CONTENT;
+    } else if (book.title.isEmpty() && startsWith(line, "Title:")) {
+      book.title = valueAfter(line, "Title:");
+    } else if (book.author.isEmpty() && startsWith(line, "Author:")) {
+      book.author = valueAfter(line, "Author:");
+    } else if (book.language.isEmpty() && startsWith(line, "Language:")) {
+      book.language = valueAfter(line, "Language:");
+    } else if (book.releaseDate.isEmpty() && startsWith(line, "Release date:")) {
+      book.releaseDate = valueAfter(line, "Release date:");
+      expectUpdatedLine = true;
+    }
+  }
+
+  private void handleContentLine(StringBuilder line) {
+    if (startsWith(line, END_MARKER)) {
+      section = Section.FOOTER;
+      footer.append(line).append('\n');
+      return;
+    }
+    // marker lines ("*** ...") are not part of the text
+    if (startsWith(line, "***")) {
+      return;
+    }
+    // skip leading blank lines, trailing ones are trimmed in finish()
+    if (content.length() == 0 && line.toString().isBlank()) {
+      return;
+    }
+    content.append(line).append('\n');
+  }
+
+  private ParsedBook finish() throws IOException {
+    if (section != Section.FOOTER) {
+      throw new FormatException("Book has no Project Gutenberg start/end markers");
+    }
+    int end = content.length();
+    while (end > 0 && Character.isWhitespace(content.charAt(end - 1))) {
+      end--;
+    }
+    content.setLength(end);
+    book.content = content.toString();
+    book.footer = footer.toString();
+    return book;
+  }
+
+  private static boolean startsWith(CharSequence line, String prefix) {
+    if (line.length() < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (line.charAt(i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String valueAfter(StringBuilder line, String key) {
+    return line.substring(key.length()).trim();
+  }
+}
@@ -0,0 +1,85 @@
+package bigdatastage2;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log of changed terms of the live index (index_changes), so the search service can
+ * drop exactly the cached postings that went stale.
+ *
+ * The indexer appends {_id: seq, terms, ts} after every write to the live index, or
+ * {_id: seq, all: true} when the whole index changed (namespace swap) or the term set
+ * is too large to list. Sequence numbers come from a counter in index_meta and
+ * publishing is serialized, so an entry is visible before any later one. Entries
+ * expire after INDEX_CHANGES_TTL_S; a reader that finds a gap drops everything.
+ */
+public class IndexChanges {
+
+  private static final String COUNTER_ID = "changes";
+  private static final int MAX_TERMS = 100_000;
+
+  private final MongoCollection<Document> changes;
+  private final MongoCollection<Document> meta;
+
+  public IndexChanges(MongoDatabase indexDb) {
+    this.changes = indexDb.getCollection("index_changes");
+    this.meta = indexDb.getCollection(InvertedIndexStore.META_COLLECTION);
+    changes.createIndex(Indexes.ascending("ts"),
+        new IndexOptions().expireAfter(Config.getLong("INDEX_CHANGES_TTL_S", 3600), TimeUnit.SECONDS));
+  }
+
+  // ---------- producer ----------
+
+  public synchronized void publish(Collection<String> terms) {
+    if (terms.isEmpty()) {
+      return;
+    }
+    Document entry = new Document("_id", nextSeq()).append("ts", new Date());
+    if (terms.size() > MAX_TERMS) {
+      entry.append("all", true);
+    } else {
+      entry.append("terms", new ArrayList<>(terms));
+    }
+    changes.insertOne(entry);
+  }
+
+  public synchronized void publishAll() {
+    changes.insertOne(new Document("_id", nextSeq()).append("all", true).append("ts", new Date()));
+  }
+
+  private long nextSeq() {
+    Document counter = meta.findOneAndUpdate(Filters.eq("_id", COUNTER_ID), Updates.inc("seq", 1L),
+        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    return counter.get("seq", Number.class).longValue();
+  }
+
+  // ---------- consumer ----------
+
+  /* Sequence number of the latest entry; 0 if none. */
+  public long latest() {
+    Document counter = meta.find(Filters.eq("_id", COUNTER_ID)).first();
+    return counter == null ? 0 : counter.get("seq", Number.class).longValue();
+  }
+
+  /* Entries with seq > afterSeq in order. */
+  public List<Document> readAfter(long afterSeq, int limit) {
+    return changes.find(Filters.gt("_id", afterSeq))
+        .sort(Sorts.ascending("_id"))
+        .limit(limit)
+        .into(new ArrayList<>());
+  }
+}
@@ -0,0 +1,175 @@
+package bigdatastage2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Set of indexed book ids, kept in memory as a CompressedBitmap and made durable
+ * with an append-only log plus snapshots (replaces control/indexed_books.txt).
+ *
+ * indexed.log - one int per change, id for "indexed", ~id for "removed"; fsync'd
+ *               before a mark call returns
+ * indexed.snapshot - the serialized bitmap; written to a temp file and moved into
+ *               place, after which the log is truncated
+ * On startup the snapshot is loaded and the log replayed (replay is idempotent, so
+ * a crash between snapshot and truncation is harmless; a torn last entry is ignored).
+ */
+public class IndexedRegistry {
+
+  private static final int SNAPSHOT_EVERY = Config.getInt("INDEX_REGISTRY_SNAPSHOT_EVERY", 50000);
+
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final CompressedBitmap ids;
+  private final FileChannel log;
+  private long logEntries = 0;
+
+  public IndexedRegistry(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    this.snapshotFile = dir.resolve("indexed.snapshot");
+    this.logFile = dir.resolve("indexed.log");
+    this.ids = loadSnapshot();
+    replayLog();
+    this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    log.truncate(logEntries * 4); // drop a torn tail
+    log.position(logEntries * 4);
+  }
+
+  // ---------- queries ----------
+
+  public synchronized boolean contains(int bookId) {
+    return ids.contains(bookId);
+  }
+
+  public synchronized long size() {
+    return ids.cardinality();
+  }
+
+  /* Copy of the current set, for callers that combine it with other bitmaps. */
+  public synchronized CompressedBitmap snapshot() {
+    return ids.copy();
+  }
+
+  // ---------- changes ----------
+
+  public void markIndexed(int bookId) throws IOException {
+    markIndexed(new int[] { bookId });
+  }
+
+  /* Adds the ids with a single log write and fsync. */
+  public synchronized void markIndexed(int[] bookIds) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(bookIds.length * 4);
+    for (int id : bookIds) {
+      if (ids.add(id)) {
+        buf.putInt(id);
+      }
+    }
+    append(buf);
+  }
+
+  public synchronized void markRemoved(int bookId) throws IOException {
+    if (ids.remove(bookId)) {
+      append(ByteBuffer.allocate(4).putInt(~bookId));
+    }
+  }
+
+  /* Forgets all ids, e.g. before a full rebuild. */
+  public synchronized void clear() throws IOException {
+    ids.clear();
+    writeSnapshot();
+  }
+
+  private void append(ByteBuffer buf) throws IOException {
+    if (buf.position() == 0) {
+      return;
+    }
+    buf.flip();
+    while (buf.hasRemaining()) {
+      log.write(buf);
+    }
+    log.force(false);
+    logEntries += buf.limit() / 4;
+    if (logEntries >= SNAPSHOT_EVERY) {
+      writeSnapshot();
+    }
+  }
+
+  private void writeSnapshot() throws IOException {
+    Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Channels.newOutputStream(ch), 1 << 16))) {
+      ids.writeTo(out);
+      out.flush();
+      ch.force(true);
+    }
+    Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.truncate(0);
+    log.position(0);
+    log.force(true);
+    logEntries = 0;
+  }
+
+  // ---------- recovery ----------
+
+  private CompressedBitmap loadSnapshot() throws IOException {
+    if (!Files.exists(snapshotFile)) {
+      return new CompressedBitmap();
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+      return CompressedBitmap.readFrom(in);
+    }
+  }
+
+  private void replayLog() throws IOException {
+    if (!Files.exists(logFile)) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+      while (true) {
+        int v = in.readInt();
+        if (v >= 0) {
+          ids.add(v);
+        } else {
+          ids.remove(~v);
+        }
+        logEntries++;
+      }
+    } catch (EOFException endOfLog) {
+      // complete entries replayed
+    }
+  }
+
+  /* One-time import of the old control/indexed_books.txt (one id per line). */
+  public synchronized int importLegacyFile(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    IntList legacy = new IntList();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      try {
+        legacy.add(Integer.parseInt(line.trim()));
+      } catch (NumberFormatException ignore) {
+      }
+    }
+    for (int i = 0; i < legacy.size(); i++) {
+      ids.add(legacy.get(i));
+    }
+    writeSnapshot();
+    Files.move(file, file.resolveSibling(file.getFileName() + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+    return legacy.size();
+  }
+}
@@ -2,13 +2,9 @@ package bigdatastage2;
 
 import com.google.gson.Gson;
 import com.mongodb.client.*;
-import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
-import com.mongodb.client.model.UpdateOneModel;
-import com.mongodb.client.model.UpdateOptions;
-import com.mongodb.client.model.Updates;
-import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.Sorts;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
@@ -19,13 +15,15 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class IndexingAPI {
 
@@ -33,21 +31,79 @@ public class IndexingAPI {
   private static final Gson gson = new Gson();
 
   private static final Path CONTROL_DIR = Paths.get("control");
-  private static final Path INDEXED_FILE = CONTROL_DIR.resolve("indexed_books.txt");
+  private static final Path LEGACY_INDEXED_FILE = CONTROL_DIR.resolve("indexed_books.txt");
+  private static final Path FEED_CHECKPOINT = CONTROL_DIR.resolve("changefeed.offset");
+  private static final Path JOBS_DIR = CONTROL_DIR.resolve("jobs");
   private static final int PORT = 7004;
+  private static final int FEED_BATCH = Config.getInt("FEED_BATCH", 100);
+  private static final long FEED_WAIT_MS = Config.getLong("FEED_WAIT_MS", 5000);
+  private static final long FEED_GAP_TIMEOUT_MS = Config.getLong("FEED_GAP_TIMEOUT_MS", 30000);
 
   private static MongoCollection<Document> booksCollection;
   private static MongoDatabase indexDb;
+  private static InvertedIndexStore indexStore;
   private static LocalDateTime lastUpdate = null;
+  private static Datalake datalake;
+  private static IndexedRegistry registry;
+  private static SegmentPublisher segments;
+  private static WriteCoalescer coalescer;
+  private static IndexChanges changes;
+  // the latest update of each book being indexed; later updates of the book wait for it
+  private static final Map<Integer, CompletableFuture<Boolean>> updatesInFlight = new ConcurrentHashMap<>();
+  private static final ExecutorService forwardWriter = Executors.newFixedThreadPool(2, r -> {
+    Thread t = new Thread(r, "forward-writer");
+    t.setDaemon(true);
+    return t;
+  });
+  private static final Map<String, RebuildJob> jobs = new ConcurrentHashMap<>();
+  private static volatile RebuildJob currentJob;
+  // shadow index of the running rebuild; incremental updates are applied to it too
+  private static volatile InvertedIndexStore shadowStore;
+  // books changed (id) or deleted (~id) while a bulk load fills the shadow; replayed into it afterwards
+  private static final Object shadowLock = new Object();
+  private static IntList deferredBooks;
+  // books the streaming pipeline has read but not written yet, and their changes meanwhile (id -> deleted)
+  private static final Set<Integer> pipelineBooks = new HashSet<>();
+  private static final Map<Integer, Boolean> pipelineChanges = new LinkedHashMap<>();
+  private static final ThreadLocal<Tokenizer> TOKENIZERS = ThreadLocal.withInitial(Tokenizer::new);
 
   public static void main(String[] args) {
     try {
       MongoDatabase[] dbs = RepositoryConnection.connectToDB();
 
       ensureControlDir();
+      registry = new IndexedRegistry(CONTROL_DIR);
+      int imported = registry.importLegacyFile(LEGACY_INDEXED_FILE);
+      if (imported > 0) {
+        System.out.println("Imported " + imported + " ids from " + LEGACY_INDEXED_FILE);
+      }
 
       booksCollection = dbs[0].getCollection("books");
       indexDb = dbs[1];
+      indexStore = new InvertedIndexStore(indexDb);
+      changes = new IndexChanges(indexDb);
+      for (RebuildJob job : RebuildJob.loadAll(JOBS_DIR)) {
+        jobs.put(job.id, job);
+      }
+      dropOrphanNamespaces();
+      if (Datalake.enabled()) {
+        datalake = Datalake.open();
+        System.out.println("Reading book text from the datalake (" + datalake.size() + " books).");
+      }
+      if (indexStore.blockFormat()) {
+        startBlockCompaction();
+      }
+      if (SegmentIndex.enabled()) {
+        segments = new SegmentPublisher(SegmentIndex.directory());
+        segments.start();
+        System.out.println("Publishing index segments to " + SegmentIndex.directory()
+            + (SegmentIndex.manifestComplete(SegmentIndex.directory()) ? ""
+                : "; searches read them once a spimi or stream rebuild has published a complete base"));
+      }
+      coalescer = new WriteCoalescer(IndexingAPI::writeBooks);
+      if (Config.getBool("FEED_CONSUMER", true)) {
+        startFeedConsumer(new ChangeFeed(dbs[0]));
+      }
       System.out.println("✅ IndexApi DB initialized");
     } catch (Exception e) {
       System.err.println("An error occured while connecting to the database" + e.getMessage());
@@ -61,8 +117,17 @@ public class IndexingAPI {
     // endpoints
     app.get("/status", IndexingAPI::status);
     app.post("/index/update/{book_id}", IndexingAPI::indexSingle);
+    app.delete("/index/{book_id}", IndexingAPI::deleteBook);
+    // POST /index/rebuild?mode=spimi builds all postings in memory and writes each term once
     app.post("/index/rebuild", IndexingAPI::indexAll);
+    app.get("/index/jobs", IndexingAPI::listJobs);
+    app.get("/index/jobs/{id}", IndexingAPI::jobStatus);
+    app.post("/index/jobs/{id}/cancel", IndexingAPI::cancelJob);
+    app.post("/index/jobs/{id}/resume", IndexingAPI::resumeJob);
+    app.post("/index/reshard", IndexingAPI::reshard);
     app.get("/index/status", IndexingAPI::indexStatus);
+    // GET /index/contains?ids=1,2,3 -> which of the books are indexed
+    app.get("/index/contains", IndexingAPI::indexContains);
 
     System.out.println("🚀 Index API running on port: " + PORT);
   }
@@ -72,26 +137,17 @@ public class IndexingAPI {
   private static void status(Context ctx) {
     Map<String, Object> m = new LinkedHashMap<>();
     m.put("service", "index-service");
-    m.put("control_file", INDEXED_FILE.toString());
+    m.put("registry", CONTROL_DIR.resolve("indexed.snapshot").toString());
     m.put("database", "connected");
     ctx.result(gson.toJson(m));
   }
 
+  /* (Re)indexes one book; a changed book is updated by diff against its forward entry. */
   private static void indexSingle(Context ctx) {
     String idStr = ctx.pathParam("book_id");
     try {
       int id = Integer.parseInt(idStr);
-      if (alreadyIndexed(id)) {
-        System.out.printf("Book %d already indexed, returning.\n", id);
-        ctx.result(gson.toJson(Map.of(
-            "book_id", id,
-            "index", "already up to date")));
-        return;
-      }
-
-      String text = booksCollection.find(Filters.eq("id", id))
-          .first()
-          .getString("content");
+      String text = loadContent(id);
 
       if (text == null) {
         ctx.status(404).result(gson.toJson(Map.of(
@@ -99,13 +155,15 @@ public class IndexingAPI {
         return;
       }
 
-      processBook(id, text);
+      CompletableFuture<Boolean> written = processBook(id, languageOf(id), text);
+      coalescer.flushNow();
+      boolean changed = written.get();
 
       lastUpdate = LocalDateTime.now();
 
       ctx.result(gson.toJson(Map.of(
           "book_id", id,
-          "index", "updated")));
+          "index", changed ? "updated" : "already up to date")));
     } catch (NumberFormatException nfe) {
       ctx.status(400).result("Invalid book_id: must be a number");
     } catch (Exception e) {
@@ -114,88 +172,601 @@ public class IndexingAPI {
     }
   }
 
+  /* DELETE /index/{book_id}: removes the book from the postings of its terms. */
+  private static void deleteBook(Context ctx) {
+    try {
+      int id = Integer.parseInt(ctx.pathParam("book_id"));
+      CompletableFuture<Boolean> done = new CompletableFuture<>();
+      awaitEarlierUpdate(id, done);
+      try {
+        registry.markRemoved(id);
+        List<String> terms = removeDirect(indexStore, id);
+        boolean removed = terms != null;
+        if (removed) {
+          changes.publish(terms);
+          if (segments != null) {
+            segments.remove(id, terms, List.of());
+          }
+        }
+        InvertedIndexStore shadow = shadowFor(id, true);
+        if (shadow != null) {
+          removeDirect(shadow, id);
+        }
+        done.complete(removed);
+        lastUpdate = LocalDateTime.now();
+        if (!removed) {
+          ctx.status(404).result(gson.toJson(Map.of("error", "Book not in the index: " + id)));
+          return;
+        }
+        System.out.printf("Removed book %d from the index.%n", id);
+        ctx.result(gson.toJson(Map.of("book_id", id, "index", "removed")));
+      } catch (Exception e) {
+        done.completeExceptionally(e);
+        throw e;
+      }
+    } catch (NumberFormatException nfe) {
+      ctx.status(400).result("Invalid book_id: must be a number");
+    } catch (Exception e) {
+      e.printStackTrace();
+      ctx.status(500).result(gson.toJson(Map.of("error", String.valueOf(e.getMessage()))));
+    }
+  }
+
+  /* Starts a rebuild job: POST /index/rebuild[?mode=spimi][&shards=N] -> 202 {job_id, ...} */
   private static void indexAll(Context ctx) {
+    String mode = "spimi".equalsIgnoreCase(ctx.queryParam("mode")) ? "spimi" : "stream";
+    Integer shards = shardsParam(ctx, InvertedIndexStore.defaultShards());
+    if (shards != null) {
+      createJob(ctx, mode, shards);
+    }
+  }
+
+  /*
+   * Online re-sharding: POST /index/reshard?shards=N copies the live index into a new
+   * namespace with N hash shards (0 = first-letter buckets) and swaps to it. Searches
+   * keep using the old layout until the swap.
+   */
+  private static void reshard(Context ctx) {
+    if (ctx.queryParam("shards") == null) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Missing shards parameter")));
+      return;
+    }
+    Integer shards = shardsParam(ctx, 0);
+    if (shards != null) {
+      createJob(ctx, "reshard", shards);
+    }
+  }
+
+  private static Integer shardsParam(Context ctx, int fallback) {
+    String param = ctx.queryParam("shards");
     try {
-      // 1️⃣ Lade alle Bücher zuerst in eine Liste (Cursor wird schnell geschlossen)
-      List<Document> books = booksCollection.find()
-          .projection(Projections.include("id", "content")) // nur benötigte Felder
-          .into(new ArrayList<>());
-
-      System.out.println("Rebuilding the index for " + books.size() + " books.");
-
-      for (Document collection : indexDb.listCollections()) {
-        collection.clear();
-      }
-
-      INDEXED_FILE.toFile().delete();
-
-      // Filter Bücher ohne ID oder bereits indexierte Bücher
-      List<Document> toIndex = books.stream()
-          .filter(d -> {
-            Integer id = d.getInteger("id");
-            if (id == null)
-              return false;
-            // if (alreadyIndexed(id)) {
-            //   System.out.printf("Book %d already indexed, skipping.%n", id);
-            //   return false;
-            // }
-            return true;
-          })
-          .toList();
-
-      // 2️⃣ Parallel-Verarbeitung mit ExecutorService
-      ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-      AtomicInteger booksProcessed = new AtomicInteger();
-      AtomicInteger termsTotal = new AtomicInteger();
+      int shards = param == null ? fallback : Integer.parseInt(param);
+      if (shards >= 0 && shards <= 1024) {
+        return shards;
+      }
+    } catch (NumberFormatException ignore) {
+    }
+    ctx.status(400).result(gson.toJson(Map.of("error", "shards must be a number between 0 and 1024")));
+    return null;
+  }
 
-      List<Future<?>> futures = new ArrayList<>();
-      for (Document d : toIndex) {
-        futures.add(executor.submit(() -> {
-          try {
-            int id = d.getInteger("id");
-            String text = d.getString("content");
-            if (text == null)
-              return; // skip books without content
+  private static void createJob(Context ctx, String mode, int shards) {
+    synchronized (jobs) {
+      RebuildJob running = currentJob;
+      if (running != null && running.state == RebuildJob.State.RUNNING) {
+        ctx.status(409).result(gson.toJson(Map.of(
+            "error", "A rebuild is already running", "job_id", running.id)));
+        return;
+      }
+      try {
+        String id = Long.toString(System.currentTimeMillis(), 36);
+        // segments live before the scan are replaced at the swap; ones flushed during it are kept
+        List<String> replaced = segments != null && !"reshard".equals(mode) ? segments.liveSegments() : List.of();
+        RebuildJob job = new RebuildJob(id, mode, shards, new ArrayList<>(replaced));
+        jobs.put(id, job);
+        startJob(job);
+        Map<String, Object> m = new LinkedHashMap<>(job.progress());
+        m.put("status_url", "/index/jobs/" + id);
+        ctx.status(202).result(gson.toJson(m));
+      } catch (Exception e) {
+        e.printStackTrace();
+        ctx.status(500).result(gson.toJson(Map.of("error", String.valueOf(e.getMessage()))));
+      }
+    }
+  }
 
-            // Prozess Buch inkl. bulk MongoDB update
-            Set<String> terms = tokenize(text);
-            updateMongoInvertedIndexBulk(terms, id);
+  private static void listJobs(Context ctx) {
+    List<Map<String, Object>> list = new ArrayList<>();
+    synchronized (jobs) {
+      for (RebuildJob job : jobs.values()) {
+        list.add(job.progress());
+      }
+    }
+    ctx.result(gson.toJson(Map.of("jobs", list)));
+  }
 
-            markIndexed(id);
-            booksProcessed.incrementAndGet();
-            termsTotal.addAndGet(terms.size());
+  private static void jobStatus(Context ctx) {
+    RebuildJob job = jobs.get(ctx.pathParam("id"));
+    if (job == null) {
+      ctx.status(404).result(gson.toJson(Map.of("error", "Unknown job: " + ctx.pathParam("id"))));
+      return;
+    }
+    ctx.result(gson.toJson(job.progress()));
+  }
+
+  private static void cancelJob(Context ctx) {
+    RebuildJob job = jobs.get(ctx.pathParam("id"));
+    if (job == null || job.state != RebuildJob.State.RUNNING) {
+      ctx.status(job == null ? 404 : 409).result(gson.toJson(Map.of("error", "No running job " + ctx.pathParam("id"))));
+      return;
+    }
+    job.cancelRequested = true;
+    RebuildPipeline pipeline = job.pipeline;
+    if (pipeline != null) {
+      pipeline.cancel();
+    }
+    ctx.status(202).result(gson.toJson(job.progress()));
+  }
+
+  private static void resumeJob(Context ctx) {
+    synchronized (jobs) {
+      RebuildJob job = jobs.get(ctx.pathParam("id"));
+      if (job == null || !job.resumable()) {
+        ctx.status(job == null ? 404 : 409).result(gson.toJson(Map.of(
+            "error", "Job " + ctx.pathParam("id") + " cannot be resumed")));
+        return;
+      }
+      if (currentJob != null && currentJob.state == RebuildJob.State.RUNNING) {
+        ctx.status(409).result(gson.toJson(Map.of("error", "A rebuild is already running", "job_id", currentJob.id)));
+        return;
+      }
+      startJob(job);
+      ctx.status(202).result(gson.toJson(job.progress()));
+    }
+  }
 
-            System.out.printf("✅ Indexed book %d (%d unique terms).%n", id, terms.size());
+  private static void startJob(RebuildJob job) {
+    currentJob = job;
+    job.state = RebuildJob.State.RUNNING;
+    Thread t = new Thread(() -> runJob(job), "rebuild-" + job.id);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /*
+   * Builds the complete index into the job's shadow namespace, then switches the
+   * pointer so readers move over in one step. The old namespace is dropped after
+   * INDEX_SWAP_GRACE_S, when no reader uses it any more. Until then the live index
+   * keeps serving; incremental updates are written to both.
+   */
+  private static void runJob(RebuildJob job) {
+    InvertedIndexStore shadow = new InvertedIndexStore(indexDb, job.layout());
+    boolean bulkLoad = !"stream".equals(job.mode);
+    try {
+      synchronized (shadowLock) {
+        // bulk loads insert each term once, so concurrent upserts must wait for the catch-up
+        deferredBooks = bulkLoad ? new IntList() : null;
+        shadowStore = shadow;
+      }
+      switch (job.mode) {
+        case "spimi" -> rebuildSpimi(job, shadow);
+        case "reshard" -> copyIndex(job, shadow);
+        default -> rebuildStreaming(job, shadow);
+      }
+      String old = InvertedIndexStore.readPointer(indexDb).namespace();
+      InvertedIndexStore.swapPointer(indexDb, job.layout());
+      indexStore.refreshPointer();
+      changes.publishAll();
+      if (segments != null && "stream".equals(job.mode)) {
+        segments.retire(job.replacedSegments);
+      }
+      job.state = RebuildJob.State.COMPLETED;
+      lastUpdate = LocalDateTime.now();
+      System.out.printf("Rebuild %s completed, index now served from '%s' (%d shards).%n",
+          job.id, job.namespace, job.shards);
+      dropNamespaceLater(old, shadow);
+    } catch (Exception e) {
+      synchronized (shadowLock) {
+        deferredBooks = null;
+        shadowStore = null;
+      }
+      if (job.cancelRequested) {
+        job.state = RebuildJob.State.CANCELLED;
+        System.out.printf("Rebuild %s cancelled at book %d.%n", job.id, job.checkpointId());
+      } else {
+        job.state = RebuildJob.State.FAILED;
+        job.error = String.valueOf(e.getMessage());
+        e.printStackTrace();
+      }
+    } finally {
+      job.pipeline = null;
+      try {
+        job.save(JOBS_DIR);
+      } catch (IOException e) {
+        System.err.println("Could not save rebuild job " + job.id + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Streams books after the job's checkpoint through the rebuild pipeline into the
+   * shadow index. A resumed job first re-applies the books changed while it was
+   * stopped, which the scan would not revisit below the checkpoint.
+   */
+  private static void rebuildStreaming(RebuildJob job, InvertedIndexStore shadow) throws Exception {
+    int workers = Config.getInt("REBUILD_WORKERS", Runtime.getRuntime().availableProcessors());
+    job.startRun(countBooks(), false);
+    job.save(JOBS_DIR);
+    Map<Integer, Boolean> missed = job.missedChanges();
+    if (!missed.isEmpty()) {
+      for (Map.Entry<Integer, Boolean> e : missed.entrySet()) {
+        applyShadowChange(shadow, e.getKey(), e.getValue());
+      }
+      job.replayed(missed);
+      job.save(JOBS_DIR);
+      System.out.printf("Rebuild %s: re-applied %d books changed while it was stopped.%n", job.id, missed.size());
+    }
+    RebuildPipeline.TermExtractor extractor = (id, language, text) -> {
+      AnalyzedBook book = analyzeBook(language, text);
+      writeBookEntries(shadow, id, book);
+      return book.terms();
+    };
+    RebuildPipeline pipeline = new RebuildPipeline(workers, extractor, (postings, bookIds) -> {
+      shadow.addPostings(postings);
+      if (segments != null) {
+        segments.addPostings(postings, bookIds.length);
+      }
+      registry.markIndexed(bookIds);
+      applyPipelineChanges(shadow, bookIds);
+      if (job.written(bookIds)) {
+        job.save(JOBS_DIR);
+      }
+    });
+    job.pipeline = pipeline;
+    try {
+      forEachBook(job.checkpointId(), (id, language, text) -> {
+        if (job.cancelRequested) {
+          throw new InterruptedException("Rebuild cancelled");
+        }
+        job.submitted(id);
+        synchronized (shadowLock) {
+          pipelineBooks.add(id);
+        }
+        pipeline.submit(id, language, text);
+      });
+      pipeline.finish();
+    } catch (Exception e) {
+      pipeline.cancel();
+      synchronized (shadowLock) {
+        // re-applied when the job resumes
+        pipelineChanges.forEach(job::missed);
+        pipelineChanges.clear();
+      }
+      throw e;
+    } finally {
+      synchronized (shadowLock) {
+        pipelineBooks.clear();
+      }
+    }
+    // changes of books the pipeline skipped (no terms, failed analysis)
+    applyPipelineChanges(shadow, null);
+  }
+
+  /*
+   * Applies the changes deferred while the pipeline had the books in flight, now that
+   * their scanned postings are written (all remaining ones if bookIds is null), so
+   * the older postings never land after the newer diff.
+   */
+  private static void applyPipelineChanges(InvertedIndexStore shadow, int[] bookIds) throws Exception {
+    Map<Integer, Boolean> ready = new LinkedHashMap<>();
+    synchronized (shadowLock) {
+      if (bookIds == null) {
+        ready.putAll(pipelineChanges);
+        pipelineChanges.clear();
+      } else {
+        for (int id : bookIds) {
+          pipelineBooks.remove(id);
+          Boolean deleted = pipelineChanges.remove(id);
+          if (deleted != null) {
+            ready.put(id, deleted);
+          }
+        }
+      }
+    }
+    for (Map.Entry<Integer, Boolean> e : ready.entrySet()) {
+      applyShadowChange(shadow, e.getKey(), e.getValue());
+    }
+  }
+
+  /*
+   * Rebuild in three steps: build postings for all books in memory (spilling sorted
+   * runs to disk above the memory budget), merge the runs, and insert every term's
+   * complete postings exactly once with bulk inserts. Runs are temporary, so a
+   * resumed SPIMI job starts over on an emptied shadow namespace.
+   */
+  private static void rebuildSpimi(RebuildJob job, InvertedIndexStore shadow) throws Exception {
+    Path spillDir = Paths.get(Config.get("INDEX_SPILL_DIR", System.getProperty("java.io.tmpdir")))
+        .resolve("spimi-" + job.id);
+    long budget = Config.getLong("INDEX_SPIMI_BUDGET_MB", 256) * 1024 * 1024;
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    // at most two books per worker are held in memory at any time
+    Semaphore inFlight = new Semaphore(threads * 2);
+    IntList indexedIds = new IntList();
+    long start = System.currentTimeMillis();
+
+    shadow.dropAll();
+    job.startRun(countBooks(), true);
+    job.save(JOBS_DIR);
+    SegmentIndex.Writer segment = null;
+    try (SpimiIndexBuilder builder = new SpimiIndexBuilder(budget, spillDir)) {
+      List<Future<?>> futures = new ArrayList<>();
+      forEachBook(-1, (id, language, text) -> {
+        if (job.cancelRequested) {
+          throw new InterruptedException("Rebuild cancelled");
+        }
+        inFlight.acquire();
+        futures.add(executor.submit(() -> {
+          try {
+            AnalyzedBook book = analyzeBook(language, text);
+            writeBookEntries(shadow, id, book);
+            builder.add(id, book.terms());
+            synchronized (indexedIds) {
+              indexedIds.add(id);
+            }
+            job.booksScanned(1);
           } catch (Exception e) {
             e.printStackTrace();
+          } finally {
+            inFlight.release();
           }
         }));
-      }
-
-      // 3️⃣ Warten bis alle Tasks fertig sind
+      });
       for (Future<?> f : futures) {
         f.get();
       }
+      System.out.printf("SPIMI: tokenized %d books (%d postings, %d runs) in %d ms.%n", indexedIds.size(),
+          builder.postingCount(), builder.runCount(), System.currentTimeMillis() - start);
+
+      if (segments != null) {
+        segment = segments.newWriter();
+      }
+      try (InvertedIndexStore.BulkLoader loader = shadow.bulkLoader(1000)) {
+        SegmentIndex.Writer segmentWriter = segment;
+        builder.finish((term, postings) -> {
+          loader.insert(term, postings);
+          if (segmentWriter != null) {
+            segmentWriter.add(term, postings);
+          }
+        });
+        System.out.printf("SPIMI: inserted %d documents in %d ms.%n", loader.documents(),
+            System.currentTimeMillis() - start);
+      }
+      catchUpShadow(shadow);
+      if (segment != null) {
+        segment.close();
+        segments.publishBase(segment, job.replacedSegments);
+        segment = null;
+      }
+      registry.markIndexed(indexedIds.toArray());
+    } finally {
+      executor.shutdownNow();
+      spillDir.toFile().delete();
+      if (segment != null) {
+        try {
+          segment.close();
+          segments.discard(segment);
+        } catch (IOException e) {
+          System.err.println("Could not discard unpublished segment: " + e.getMessage());
+        }
+      }
+    }
+  }
 
-      executor.shutdown();
-      executor.awaitTermination(1, TimeUnit.HOURS);
+  /*
+   * Copies the live index into the job's namespace under the job's shard count.
+   * Postings are read term by term and bulk inserted, so nothing is re-tokenized;
+   * the copy starts over when resumed.
+   *
+   * Forward entries are copied first, once the updates started before deferral have
+   * finished: a book changed during the copy then has its old entry in the target,
+   * and the catch-up diffs old against new terms. (Copied after the postings, the
+   * entry could already be the new one, and the catch-up would keep stale postings.)
+   */
+  private static void copyIndex(RebuildJob job, InvertedIndexStore target) throws Exception {
+    InvertedIndexStore source = new InvertedIndexStore(indexDb, indexStore.layout());
+    long start = System.currentTimeMillis();
+    target.dropAll();
+    job.startRun(source.documentCount(), true);
+    job.save(JOBS_DIR);
+    awaitUpdatesInFlight();
+    target.copyBookEntriesFrom(source);
+    try (InvertedIndexStore.BulkLoader loader = target.bulkLoader(1000)) {
+      source.forEachTerm((term, postings) -> {
+        if (job.cancelRequested) {
+          throw new InterruptedException("Reshard cancelled");
+        }
+        loader.insert(term, postings);
+        job.booksScanned(1);
+      });
+      System.out.printf("Reshard: copied '%s' (%d shards) to '%s' (%d shards), %d documents in %d ms.%n",
+          source.namespace(), source.layout().shards(), job.namespace, job.shards, loader.documents(),
+          System.currentTimeMillis() - start);
+    }
+    catchUpShadow(target);
+  }
 
-      lastUpdate = LocalDateTime.now();
+  /* Waits for the book updates running now, so their forward entries are written. */
+  private static void awaitUpdatesInFlight() throws InterruptedException {
+    for (CompletableFuture<Boolean> update : new ArrayList<>(updatesInFlight.values())) {
+      try {
+        update.get();
+      } catch (ExecutionException failed) {
+        // the failure was reported to its caller; the next update of the book repairs it
+      }
+    }
+  }
 
-      // 4️⃣ Ergebnis an den Client
-      ctx.result(gson.toJson(Map.of(
-          "books_processed", booksProcessed.get(),
-          "terms_indexed", termsTotal.get())));
+  /*
+   * Ends deferral after a bulk load and indexes the books that arrived during it into
+   * the shadow; from here on processBook writes to the shadow directly.
+   */
+  private static void catchUpShadow(InvertedIndexStore shadow) throws Exception {
+    IntList changes;
+    synchronized (shadowLock) {
+      changes = deferredBooks;
+      deferredBooks = null;
+    }
+    if (changes == null || changes.isEmpty()) {
+      return;
+    }
+    // the last change of each book wins; ~id marks a deletion
+    Map<Integer, Boolean> deleted = new LinkedHashMap<>();
+    for (int i = 0; i < changes.size(); i++) {
+      int change = changes.get(i);
+      deleted.put(change < 0 ? ~change : change, change < 0);
+    }
+    for (Map.Entry<Integer, Boolean> e : deleted.entrySet()) {
+      applyShadowChange(shadow, e.getKey(), e.getValue());
+    }
+    System.out.printf("Caught up %d books changed during the bulk load.%n", deleted.size());
+  }
+
+  /*
+   * Brings one book in the shadow up to date with its current text, or removes it.
+   * Runs as an update of the book, after the earlier ones and before later ones.
+   */
+  private static void applyShadowChange(InvertedIndexStore shadow, int bookId, boolean deleted) throws Exception {
+    CompletableFuture<Boolean> done = new CompletableFuture<>();
+    awaitEarlierUpdate(bookId, done);
+    try {
+      if (deleted) {
+        removeDirect(shadow, bookId);
+      } else {
+        String text = loadContent(bookId);
+        if (text != null) {
+          updateDirect(shadow, bookId, analyzeBook(languageOf(bookId), text));
+        }
+      }
+      done.complete(true);
     } catch (Exception e) {
-      e.printStackTrace();
-      ctx.status(500).result(gson.toJson(Map.of("error", e.getMessage())));
+      done.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /*
+   * Incremental updates keep going to the new index through the shadow store until
+   * the old namespace is dropped, so none are lost while writers switch over.
+   */
+  private static void dropNamespaceLater(String namespace, InvertedIndexStore shadow) {
+    long graceSec = Config.getLong("INDEX_SWAP_GRACE_S", 30);
+    ScheduledExecutorService dropper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "drop-namespace");
+      t.setDaemon(true);
+      return t;
+    });
+    dropper.schedule(() -> {
+      if (shadowStore == shadow) {
+        shadowStore = null;
+      }
+      new InvertedIndexStore(indexDb, namespace).dropAll();
+      System.out.println("Dropped old index namespace '" + namespace + "'");
+      dropper.shutdown();
+    }, graceSec, TimeUnit.SECONDS);
+  }
+
+  /*
+   * Drops namespaces left behind by a crash: everything that is neither live nor
+   * the shadow of a job that can still be resumed.
+   */
+  private static void dropOrphanNamespaces() {
+    String live = InvertedIndexStore.readPointer(indexDb).namespace();
+    Set<String> keep = new HashSet<>();
+    keep.add(live);
+    for (RebuildJob job : jobs.values()) {
+      if (job.resumable()) {
+        keep.add(job.namespace);
+      }
+    }
+    Set<String> found = new HashSet<>();
+    for (String name : indexDb.listCollectionNames()) {
+      int dot = name.indexOf('.');
+      if (name.startsWith("ns") && dot > 0) {
+        found.add(name.substring(0, dot + 1));
+      }
+    }
+    if (!live.isEmpty()) {
+      found.add("");
+    }
+    for (String ns : found) {
+      if (!keep.contains(ns)) {
+        new InvertedIndexStore(indexDb, ns).dropAll();
+        System.out.println("Dropped orphaned index namespace '" + ns + "'");
+      }
+    }
+  }
+
+  private static long countBooks() throws IOException {
+    if (datalake != null) {
+      datalake.refresh();
+      return datalake.size();
+    }
+    return booksCollection.countDocuments(Filters.exists("content"));
+  }
+
+  /* Receives one book of a full scan. */
+  @FunctionalInterface
+  private interface BookConsumer {
+    void accept(int bookId, String language, String text) throws Exception;
+  }
+
+  /*
+   * Streams all books with an id above afterId (id, language and text) in ascending id
+   * order from the datalake or the books collection, so a scan can resume after a checkpoint.
+   */
+  private static void forEachBook(int afterId, BookConsumer consumer) throws Exception {
+    if (datalake != null) {
+      datalake.refresh();
+      Map<Integer, String> languages = loadLanguages();
+      List<Integer> ids = new ArrayList<>(datalake.idsInStorageOrder());
+      Collections.sort(ids);
+      for (int id : ids) {
+        if (id <= afterId) {
+          continue;
+        }
+        String text = datalake.readContent(id);
+        if (text != null) {
+          consumer.accept(id, languages.get(id), text);
+        }
+      }
+      return;
+    }
+    try (MongoCursor<Document> cursor = booksCollection
+        .find(Filters.and(Filters.exists("content"), Filters.gt("id", afterId)))
+        .sort(Sorts.ascending("id"))
+        .projection(Projections.include("id", "language", "content"))
+        .batchSize(Config.getInt("REBUILD_CURSOR_BATCH", 16))
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Document d = cursor.next();
+        Integer id = d.getInteger("id");
+        String text = BookCodec.readText(d, "content");
+        if (id != null && text != null) {
+          consumer.accept(id, d.getString("language"), text);
+        }
+      }
     }
   }
 
   private static void indexStatus(Context ctx) {
     Map<String, Object> m = new LinkedHashMap<>();
     try {
-      m.put("books_indexed", countIndexedFromFile());
+      m.put("books_indexed", registry.size());
+      InvertedIndexStore.Layout layout = indexStore.layout();
+      m.put("namespace", layout.namespace());
+      m.put("shards", layout.shards());
+      m.put("write_coalescer", coalescer.stats());
       m.put("last_update", lastUpdate != null ? lastUpdate.toString() : "unknown");
       Document stats = indexDb.runCommand(new Document("dbStats", 1));
       double sizeInMB = stats.getLong("dataSize") / (1024 * 1024);
@@ -206,89 +777,416 @@ public class IndexingAPI {
     }
   }
 
+  /* Batch membership check for the controller: {"indexed":[...], "not_indexed":[...]} */
+  private static void indexContains(Context ctx) {
+    String param = ctx.queryParam("ids");
+    if (param == null || param.isBlank()) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Query parameter 'ids' is required.")));
+      return;
+    }
+    List<Integer> indexed = new ArrayList<>();
+    List<Integer> notIndexed = new ArrayList<>();
+    try {
+      for (String part : param.split(",")) {
+        if (part.isBlank()) {
+          continue;
+        }
+        int id = Integer.parseInt(part.trim());
+        (registry.contains(id) ? indexed : notIndexed).add(id);
+      }
+    } catch (NumberFormatException nfe) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "ids must be a comma-separated list of numbers")));
+      return;
+    }
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("indexed", indexed);
+    m.put("not_indexed", notIndexed);
+    ctx.result(gson.toJson(m));
+  }
+
+  // ---------- block compaction ----------
+
+  /* Periodically merges the small tail blocks written by incremental indexing. */
+  private static void startBlockCompaction() {
+    long intervalSec = Config.getLong("INDEX_COMPACT_INTERVAL_S", 30);
+    int termsPerRun = Config.getInt("INDEX_COMPACT_TERMS", 5000);
+    ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "block-compaction");
+      t.setDaemon(true);
+      return t;
+    });
+    compactor.scheduleWithFixedDelay(() -> {
+      try {
+        int compacted = indexStore.compactTails(termsPerRun);
+        if (compacted > 0) {
+          System.out.printf("Compacted tail blocks of %d terms.%n", compacted);
+        }
+      } catch (Exception e) {
+        System.err.println("Block compaction failed: " + e.getMessage());
+      }
+    }, intervalSec, intervalSec, TimeUnit.SECONDS);
+  }
+
+  // ---------- change feed consumer ----------
+
+  private static void startFeedConsumer(ChangeFeed feed) {
+    Thread consumer = new Thread(() -> consumeFeed(feed), "change-feed-consumer");
+    consumer.setDaemon(true);
+    consumer.start();
+    System.out.println("Change feed consumer started at seq " + readCheckpoint());
+  }
+
+  /*
+   * Tails the ingestion change feed and indexes new or changed books in micro-batches.
+   * Only a gap-free prefix of the feed is consumed: a missing seq usually means an
+   * ingester reserved it and is still writing. Gaps older than FEED_GAP_TIMEOUT_MS
+   * (e.g. an ingester crashed in between) are skipped.
+   */
+  private static void consumeFeed(ChangeFeed feed) {
+    long checkpoint = readCheckpoint();
+    long gapSince = 0;
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        List<Document> events = feed.readAfter(checkpoint, FEED_BATCH);
+        if (events.isEmpty()) {
+          feed.awaitNew(checkpoint, FEED_WAIT_MS);
+          continue;
+        }
+        List<Document> ready = new ArrayList<>();
+        long next = checkpoint;
+        for (Document event : events) {
+          long seq = event.get("seq", Number.class).longValue();
+          if (seq != next + 1) {
+            break;
+          }
+          ready.add(event);
+          next = seq;
+        }
+        if (ready.isEmpty()) {
+          long now = System.currentTimeMillis();
+          if (gapSince == 0) {
+            gapSince = now;
+          }
+          if (now - gapSince < FEED_GAP_TIMEOUT_MS) {
+            Thread.sleep(Math.min(1000, FEED_WAIT_MS));
+            continue;
+          }
+          System.err.printf("Change feed: skipping missing seq %d..%d%n", checkpoint + 1,
+              events.get(0).get("seq", Number.class).longValue() - 1);
+          ready = events;
+          next = events.get(events.size() - 1).get("seq", Number.class).longValue();
+        }
+        gapSince = 0;
+        indexChanges(ready);
+        checkpoint = next;
+        writeCheckpoint(checkpoint);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        System.err.println("Change feed consumer error: " + e.getMessage());
+        try {
+          Thread.sleep(FEED_WAIT_MS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private static void indexChanges(List<Document> events) throws Exception {
+    // a book changed several times in one batch is indexed once
+    Set<Integer> bookIds = new LinkedHashSet<>();
+    for (Document event : events) {
+      // no-op events only fill the seq of a write that failed
+      if (!ChangeFeed.isNoop(event)) {
+        bookIds.add(event.getInteger("book_id"));
+      }
+    }
+    // books are analyzed while earlier ones are written; the checkpoint moves once all are
+    List<CompletableFuture<Boolean>> written = new ArrayList<>();
+    for (int id : bookIds) {
+      String text = loadContent(id);
+      if (text == null) {
+        System.err.printf("Change feed: book %d has no content, skipping.%n", id);
+        continue;
+      }
+      written.add(processBook(id, languageOf(id), text));
+    }
+    coalescer.flushNow();
+    CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).get();
+    int indexed = written.size();
+    lastUpdate = LocalDateTime.now();
+    System.out.printf("Change feed: indexed %d books (seq %s..%s).%n", indexed,
+        events.get(0).get("seq"), events.get(events.size() - 1).get("seq"));
+  }
+
   // ---------- core indexing ----------
 
-  private static void processBook(int bookId, String text) throws Exception {
-    Set<String> terms = tokenize(text);
+  /*
+   * Analyzes a book and diffs its terms against the forward entry: removed terms
+   * are pulled right away, new ones go through the write coalescer, and the forward
+   * entry is replaced once they are written. The future completes then, with false
+   * if the book was already indexed with the same terms. A registered book without a
+   * forward entry (indexed before they existed) is diffed against the terms a scan of
+   * the postings finds, which also backfills its entry.
+   */
+  private static CompletableFuture<Boolean> processBook(int bookId, String language, String text) throws Exception {
+    AnalyzedBook book = analyzeBook(language, text);
+    List<String> terms = book.terms();
+    CompletableFuture<Boolean> done = new CompletableFuture<>();
+    awaitEarlierUpdate(bookId, done);
+    try {
+      InvertedIndexStore shadow = shadowFor(bookId, false);
+      if (shadow != null) {
+        updateDirect(shadow, bookId, book);
+      }
+      InvertedIndexStore.ForwardEntry old = indexStore.readForward(bookId);
+      boolean scanned = old == null && registry.contains(bookId);
+      if (scanned) {
+        old = indexStore.scanForward(bookId);
+      }
+      if (!scanned && old != null && old.hash() == InvertedIndexStore.termsHash(terms)
+          && registry.contains(bookId)) {
+        if (book.positions() != null) {
+          // same terms, but words may have moved
+          indexStore.writePositions(bookId, book.positions());
+        }
+        done.complete(false);
+        return done;
+      }
+      List<String> added = old == null ? terms : minus(terms, old.terms());
+      List<String> removed = old == null ? List.of() : minus(old.terms(), terms);
+      if (!removed.isEmpty()) {
+        indexStore.removeBook(removed, bookId);
+        changes.publish(removed);
+        if (segments != null) {
+          segments.remove(bookId, removed, terms);
+        }
+      }
+      coalescer.add(bookId, added).whenCompleteAsync((v, error) -> {
+        try {
+          if (error != null) {
+            throw error;
+          }
+          writeBookEntries(indexStore, bookId, book);
+          System.out.printf("✅ Indexed book %d (%d unique terms, +%d -%d).%n", bookId, terms.size(),
+              added.size(), removed.size());
+          done.complete(true);
+        } catch (Throwable t) {
+          done.completeExceptionally(t);
+        }
+      }, forwardWriter);
+    } catch (Exception e) {
+      done.completeExceptionally(e);
+      throw e;
+    }
+    return done;
+  }
 
-    // Bulk update MongoDB inverted index
-    updateMongoInvertedIndexBulk(terms, bookId);
+  /*
+   * Registers an update of a book and waits for the previous one to finish, so every
+   * diff is taken against the forward entry the previous update wrote.
+   */
+  private static void awaitEarlierUpdate(int bookId, CompletableFuture<Boolean> update) throws InterruptedException {
+    CompletableFuture<Boolean> earlier = updatesInFlight.put(bookId, update);
+    update.whenComplete((v, e) -> updatesInFlight.remove(bookId, update));
+    if (earlier != null) {
+      try {
+        earlier.get();
+      } catch (ExecutionException failed) {
+        // the diff below repairs what the failed update left behind as far as it got
+      }
+    }
+  }
 
-    markIndexed(bookId);
-    System.out.printf("✅ Indexed book %d (%d unique terms).%n", bookId, terms.size());
+  /*
+   * Diff update of one store written directly, for the shadow of a rebuild. A
+   * registered book without a forward entry is diffed against a scan, as in processBook.
+   */
+  private static void updateDirect(InvertedIndexStore store, int bookId, AnalyzedBook book) {
+    List<String> terms = book.terms();
+    InvertedIndexStore.ForwardEntry old = store.readForward(bookId);
+    boolean scanned = old == null && registry.contains(bookId);
+    if (scanned) {
+      old = store.scanForward(bookId);
+    }
+    if (!scanned && old != null && old.hash() == InvertedIndexStore.termsHash(terms)) {
+      if (book.positions() != null) {
+        store.writePositions(bookId, book.positions());
+      }
+      return;
+    }
+    if (old != null) {
+      List<String> removed = minus(old.terms(), terms);
+      if (!removed.isEmpty()) {
+        store.removeBook(removed, bookId);
+      }
+    }
+    store.addBook(old == null ? terms : minus(terms, old.terms()), bookId);
+    writeBookEntries(store, bookId, book);
   }
 
-  private static Set<String> tokenize(String text) {
-    Set<String> tokens = new HashSet<>();
-    if (text == null)
-      return tokens;
-    Matcher m = Pattern.compile("\\b[a-z]{2,}\\b").matcher(text.toLowerCase());
-    while (m.find())
-      tokens.add(m.group());
-    return tokens;
+  /* Forward entry and, with INDEX_POSITIONS, the positions of a book. */
+  private static void writeBookEntries(InvertedIndexStore store, int bookId, AnalyzedBook book) {
+    store.writeForward(bookId, book.terms());
+    if (book.positions() != null) {
+      store.writePositions(bookId, book.positions());
+    }
   }
 
-  private static void updateMongoInvertedIndexBulk(Set<String> terms, int bookId) {
-    // Map bucket -> List of term updates
-    Map<String, List<WriteModel<Document>>> bucketWrites = new HashMap<>();
+  /*
+   * Removes a book from one store using its forward entry or, for books indexed
+   * before forward entries existed, the terms a scan of the postings finds (its
+   * current text may not be what it was indexed with). Returns the terms the book
+   * was removed from, or null if the store does not hold it.
+   */
+  private static List<String> removeDirect(InvertedIndexStore store, int bookId) {
+    InvertedIndexStore.ForwardEntry entry = store.readForward(bookId);
+    if (entry == null) {
+      entry = store.scanForward(bookId);
+    }
+    if (entry == null) {
+      return null;
+    }
+    List<String> terms = entry.terms();
+    store.removeBook(terms, bookId);
+    store.deleteForward(bookId);
+    store.deletePositions(bookId);
+    return terms;
+  }
 
+  private static List<String> minus(List<String> terms, List<String> other) {
+    Set<String> exclude = new HashSet<>(other);
+    List<String> rest = new ArrayList<>();
     for (String term : terms) {
-      String bucket = term.substring(0, 1);
-      bucketWrites.computeIfAbsent(bucket, k -> new ArrayList<>())
-          .add(new UpdateOneModel<>(
-              Filters.eq("term", term),
-              Updates.addToSet("postings", bookId),
-              new UpdateOptions().upsert(true)));
+      if (!exclude.contains(term)) {
+        rest.add(term);
+      }
     }
+    return rest;
+  }
 
-    // Write each bucket in bulk
-    for (Map.Entry<String, List<WriteModel<Document>>> entry : bucketWrites.entrySet()) {
-      String bucket = entry.getKey();
-      List<WriteModel<Document>> writes = entry.getValue();
-      if (!writes.isEmpty()) {
-        MongoCollection<Document> col = indexDb.getCollection(bucket);
-        col.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+  /* Flush target of the coalescer: the live index, segments and the registry. */
+  private static void writeBooks(Map<String, IntList> postings, int[] bookIds) throws Exception {
+    indexStore.addPostings(postings);
+    changes.publish(postings.keySet());
+    if (segments != null) {
+      segments.addPostings(postings, bookIds.length);
+    }
+    registry.markIndexed(bookIds);
+  }
+
+  /*
+   * The shadow store to update or delete a book in as well; null while a bulk load
+   * defers it, or while the streaming pipeline has the book in flight (the change is
+   * applied once the pipeline wrote it). Streaming jobs that are stopped record the
+   * change for their resume.
+   */
+  private static InvertedIndexStore shadowFor(int bookId, boolean delete) {
+    List<RebuildJob> stopped = new ArrayList<>();
+    InvertedIndexStore shadow;
+    synchronized (shadowLock) {
+      for (RebuildJob job : jobs.values()) {
+        if (job.keepsShadow() && (job != currentJob || shadowStore == null)) {
+          job.missed(bookId, delete);
+          stopped.add(job);
+        }
+      }
+      if (deferredBooks != null) {
+        deferredBooks.add(delete ? ~bookId : bookId);
+        shadow = null;
+      } else if (shadowStore != null && pipelineBooks.contains(bookId)) {
+        // the last change wins, in the order of the last changes
+        pipelineChanges.remove(bookId);
+        pipelineChanges.put(bookId, delete);
+        shadow = null;
+      } else {
+        shadow = shadowStore;
+      }
+    }
+    for (RebuildJob job : stopped) {
+      try {
+        job.save(JOBS_DIR);
+      } catch (IOException e) {
+        System.err.println("Could not save rebuild job " + job.id + ": " + e.getMessage());
       }
     }
+    return shadow;
   }
 
-  // ---------- IO helpers ----------
+  /* Terms of a book and, if INDEX_POSITIONS is on, their token positions (else null). */
+  private record AnalyzedBook(List<String> terms, Map<String, IntList> positions) {
+  }
 
-  private static void ensureControlDir() throws IOException {
-    if (!Files.exists(CONTROL_DIR))
-      Files.createDirectories(CONTROL_DIR);
+  private static AnalyzedBook analyzeBook(String language, String text) {
+    if (!InvertedIndexStore.positionsEnabled()) {
+      return new AnalyzedBook(analyze(language, text), null);
+    }
+    Map<String, IntList> positions = Analyzer.forLanguage(language).analyzePositions(text, TOKENIZERS.get());
+    return new AnalyzedBook(new ArrayList<>(positions.keySet()), positions);
   }
 
-  private static void markIndexed(int bookId) throws IOException {
-    ensureControlDir();
-    try (BufferedWriter bw = Files.newBufferedWriter(
-        INDEXED_FILE, StandardCharsets.UTF_8,
-        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-      bw.write(String.valueOf(bookId));
-      bw.newLine();
+  /* Unique index terms of a book; each indexing thread reuses its own tokenizer. */
+  private static List<String> analyze(String language, String text) {
+    return Analyzer.forLanguage(language).analyze(text, TOKENIZERS.get());
+  }
+
+  // ---------- IO helpers ----------
+
+  /* Reads the text of one book from the datalake or, if not kept there, from Mongo. */
+  private static String loadContent(int bookId) throws IOException {
+    if (datalake != null) {
+      datalake.refresh();
+      String text = datalake.readContent(bookId);
+      if (text != null) {
+        return text;
+      }
     }
+    Document book = booksCollection.find(Filters.eq("id", bookId))
+        .projection(Projections.include("id", "content"))
+        .first();
+    return book == null ? null : BookCodec.readText(book, "content");
   }
 
-  private static boolean alreadyIndexed(int bookId) {
-    if (!Files.exists(INDEXED_FILE))
-      return false;
-    try {
-      for (String line : Files.readAllLines(INDEXED_FILE, StandardCharsets.UTF_8)) {
-        if (line.trim().equals(String.valueOf(bookId)))
-          return true;
+  /* Language field of one book; null (default analyzer) if unknown. */
+  private static String languageOf(int bookId) {
+    Document book = booksCollection.find(Filters.eq("id", bookId))
+        .projection(Projections.include("language"))
+        .first();
+    return book == null ? null : book.getString("language");
+  }
+
+  /* Language of every book, for full rebuilds that read the text from the datalake. */
+  private static Map<Integer, String> loadLanguages() {
+    Map<Integer, String> languages = new HashMap<>();
+    for (Document d : booksCollection.find().projection(Projections.include("id", "language"))) {
+      Integer id = d.getInteger("id");
+      if (id != null) {
+        languages.put(id, d.getString("language"));
       }
-    } catch (IOException ignore) {
     }
-    return false;
+    return languages;
   }
 
-  private static int countIndexedFromFile() {
-    if (!Files.exists(INDEXED_FILE))
-      return 0;
+  private static void ensureControlDir() throws IOException {
+    if (!Files.exists(CONTROL_DIR))
+      Files.createDirectories(CONTROL_DIR);
+  }
+
+  private static long readCheckpoint() {
     try {
-      return (int) Files.lines(INDEXED_FILE, StandardCharsets.UTF_8).filter(s -> !s.isBlank()).count();
-    } catch (IOException e) {
+      return Files.exists(FEED_CHECKPOINT) ? Long.parseLong(Files.readString(FEED_CHECKPOINT).trim()) : 0;
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Unreadable change feed checkpoint, starting from the beginning: " + e.getMessage());
       return 0;
     }
   }
+
+  /* Written to a temp file and moved into place so a crash never leaves a torn checkpoint. */
+  private static void writeCheckpoint(long seq) throws IOException {
+    ensureControlDir();
+    Path tmp = FEED_CHECKPOINT.resolveSibling(FEED_CHECKPOINT.getFileName() + ".tmp");
+    Files.writeString(tmp, Long.toString(seq), StandardCharsets.UTF_8);
+    Files.move(tmp, FEED_CHECKPOINT, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
 }
@@ -4,22 +4,50 @@ import io.javalin.Javalin;
 import io.javalin.http.Context;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 
 public class IngestingAPI {
 
@@ -28,6 +56,32 @@ public class IngestingAPI {
   private static MongoCollection<Document> booksCollection;
   private static final int PORT = 7002;
 
+  // ---------- batch ingestion ----------
+  // One client for the whole service: connections (and TLS sessions) are pooled
+  // and HTTP/2 multiplexes concurrent downloads over a single connection per host.
+  private static final HttpClient http = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+  private static final int BATCH_THREADS = Config.getInt("INGEST_BATCH_THREADS", 32);
+  private static final int BATCH_MAX_BOOKS = Config.getInt("INGEST_BATCH_MAX_BOOKS", 10000);
+  private static final int BULK_SIZE = Config.getInt("INGEST_BULK_SIZE", 50);
+  private static final int BATCH_WINDOW = Config.getInt("INGEST_BATCH_WINDOW", BATCH_THREADS);
+  private static final ExecutorService downloadPool = Executors.newFixedThreadPool(BATCH_THREADS);
+  // per-host rate limits, in-flight caps, retries and dead letters
+  private static final DownloadScheduler scheduler = new DownloadScheduler(http);
+  private static final int MIGRATION_BATCH = 20;
+  private static final int LIST_BATCH = 1000;
+
+  // raw text goes here instead of the books collection when BOOK_STORE=datalake
+  private static Datalake datalake;
+  private static ChangeFeed changeFeed;
+  private static DownloadCache downloadCache;
+  // point this at a local stand-in server to test ingestion offline
+  private static final String GUTENBERG_BASE_URL = Config.get("GUTENBERG_BASE_URL", "https://www.gutenberg.org")
+      .replaceAll("/+$", "");
+
   public static void main(String[] args) {
 
     try {
@@ -36,6 +90,23 @@ public class IngestingAPI {
       e.printStackTrace();
     }
     booksCollection = databases[0].getCollection("books");
+    booksCollection.createIndex(Indexes.ascending("id"));
+    changeFeed = new ChangeFeed(databases[0]);
+    try {
+      downloadCache = DownloadCache.open();
+    } catch (IOException e) {
+      System.err.println("Could not open the download cache: " + e.getMessage());
+      return;
+    }
+    if (Datalake.enabled()) {
+      try {
+        datalake = Datalake.open();
+        System.out.println("Raw book text is stored in the datalake (" + datalake.size() + " books).");
+      } catch (IOException e) {
+        System.err.println("Could not open the datalake: " + e.getMessage());
+        return;
+      }
+    }
 
     Javalin app = Javalin.create(config -> {
       config.http.defaultContentType = "application/json";
@@ -51,14 +122,29 @@ public class IngestingAPI {
       ctx.result(gson.toJson(status));
     });
 
-    // POST /ingest/{book_id}
+    // POST /ingest/batch (Body: {"book_ids":[1,2,3]} or {"from":1,"to":500})
+    // literal routes are registered before /ingest/{book_id}, which would match them too
+    app.post("/ingest/batch", IngestingAPI::handleIngestBatch);
+
+    // POST /ingest/migrate?codec={none|deflate} rewrites stored books into the given codec
+    app.post("/ingest/migrate", IngestingAPI::handleMigrateCodec);
+
+    // POST /ingest/{book_id}?force=true skips the conditional download
     app.post("/ingest/{book_id}", IngestingAPI::handleIngestBook);
 
     // GET /ingest/status/{book_id}
     app.get("/ingest/status/{book_id}", IngestingAPI::handleGetStatus);
 
-    // GET /ingest/list
+    // GET /ingest/list?after={id}&limit={n}&from={id}&to={id}&count={exact|estimated|none}
     app.get("/ingest/list", IngestingAPI::handleListBooks);
+
+    // GET /ingest/scheduler (queue depth, in-flight, retries, failures)
+    app.get("/ingest/scheduler", ctx -> ctx.result(gson.toJson(scheduler.metrics())));
+
+    // GET /ingest/deadletters (downloads that failed permanently)
+    app.get("/ingest/deadletters", ctx -> ctx.result(gson.toJson(Map.of(
+        "count", scheduler.deadLetters().size(),
+        "dead_letters", scheduler.deadLetters()))));
   }
 
   public static void handleIngestBook(Context ctx) {
@@ -71,27 +157,28 @@ public class IngestingAPI {
       ctx.status(400).result("Invalid book_id: must be a number");
       return;
     }
+    boolean force = Boolean.parseBoolean(ctx.queryParam("force"));
     try {
-      // Download book from Project Gutenberg
-      String urlString = "https://www.gutenberg.org/cache/epub/" + bookId + "/pg" + bookId + ".txt";
-      String bookContent = downloadBook(urlString);
-
-      // Strip metadata from book
-      String title = extractMetadata(bookContent, "Title:");
-      String author = extractMetadata(bookContent, "Author:");
-      String releaseDate = extractReleaseDate(bookContent);
-      String language = extractMetadata(bookContent, "Language:");
-
-      String[] contentAndFooter = extractContent(bookContent);
-
-      System.out.println("Inserting book with id: " + bookId + " and title: " + title + " by " + author);
-
-      Document book = buildDbEntry(idNum, contentAndFooter[0], title, author, releaseDate, language,
-          contentAndFooter[1]);
-      booksCollection.replaceOne(Filters.eq("id", idNum), book, new ReplaceOptions().upsert(true));
+      FetchedBook fetched = fetchBook(idNum, force);
       Map<String, Object> response = new LinkedHashMap<>();
       response.put("book_id", bookId);
-      response.put("status", "downloaded");
+      if (fetched.book == null) {
+        // nothing changed upstream: no upsert, no change event, no reindex
+        response.put("status", "unchanged");
+      } else {
+        Document book = fetched.book;
+        long seq = changeFeed.reserve(1);
+        book.append("version", seq);
+        try {
+          booksCollection.replaceOne(Filters.eq("id", idNum), book, new ReplaceOptions().upsert(true));
+        } catch (Exception e) {
+          publishNoops(List.of(seq));
+          throw e;
+        }
+        downloadCache.store(fetched.validators);
+        publishChanges(List.of(book));
+        response.put("status", "downloaded");
+      }
       response.put("path", "BigData.books");
       ctx.result(gson.toJson(response));
     } catch (Exception e) {
@@ -104,6 +191,201 @@ public class IngestingAPI {
     }
   }
 
+  /*
+   * Ingests many books in one call. Downloads run concurrently on the shared
+   * client (capped per host), finished books are upserted in unordered bulks.
+   */
+  public static void handleIngestBatch(Context ctx) {
+    List<Integer> ids;
+    try {
+      ids = parseBatchIds(ctx.body());
+    } catch (Exception e) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Invalid batch request: " + e.getMessage())));
+      return;
+    }
+    if (ids.isEmpty() || ids.size() > BATCH_MAX_BOOKS) {
+      ctx.status(400).result(gson.toJson(Map.of(
+          "error", "A batch must contain between 1 and " + BATCH_MAX_BOOKS + " book ids")));
+      return;
+    }
+    boolean force = Boolean.parseBoolean(ctx.queryParam("force"));
+    System.out.println("Batch ingestion of " + ids.size() + " books started.");
+
+    Map<Integer, Map<String, Object>> outcomes = new LinkedHashMap<>();
+    for (int id : ids) {
+      outcomes.put(id, outcome(id, "pending", null));
+    }
+    CompletionService<FetchedBook> downloads = new ExecutorCompletionService<>(downloadPool);
+    Map<Future<FetchedBook>, Integer> pending = new HashMap<>();
+    Iterator<Integer> next = ids.iterator();
+    int notSubmitted = ids.size();
+    scheduler.addBacklog(notSubmitted);
+
+    List<FetchedBook> bulk = new ArrayList<>();
+    try {
+      while (next.hasNext() || !pending.isEmpty()) {
+        // only a window of downloads is submitted at a time; the rest waits here as
+        // backlog instead of piling up (with their bodies) behind a slow host
+        while (next.hasNext() && pending.size() < BATCH_WINDOW) {
+          int id = next.next();
+          notSubmitted--;
+          scheduler.addBacklog(-1);
+          pending.put(downloads.submit(() -> fetchBook(id, force)), id);
+        }
+        Future<FetchedBook> done = downloads.take();
+        int id = pending.remove(done);
+        try {
+          FetchedBook fetched = done.get();
+          if (fetched.book == null) {
+            outcomes.put(id, outcome(id, "unchanged", null));
+          } else {
+            bulk.add(fetched);
+          }
+        } catch (ExecutionException e) {
+          outcomes.put(id, outcome(id, "failed", e.getCause().getMessage()));
+        }
+        if (bulk.size() >= BULK_SIZE) {
+          flushBulk(bulk, outcomes);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      scheduler.addBacklog(-notSubmitted);
+    }
+    flushBulk(bulk, outcomes);
+
+    Map<String, Long> counts = new HashMap<>();
+    for (Map<String, Object> o : outcomes.values()) {
+      counts.merge((String) o.get("status"), 1L, Long::sum);
+    }
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("requested", ids.size());
+    response.put("downloaded", counts.getOrDefault("downloaded", 0L));
+    response.put("unchanged", counts.getOrDefault("unchanged", 0L));
+    response.put("failed", counts.getOrDefault("failed", 0L));
+    response.put("path", "BigData.books");
+    response.put("results", outcomes.values());
+    ctx.result(gson.toJson(response));
+    System.out.println("Batch ingestion finished: " + counts);
+  }
+
+  /* Accepts {"book_ids":[...]} or an inclusive range {"from":a,"to":b}. */
+  private static List<Integer> parseBatchIds(String body) {
+    JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+    Set<Integer> ids = new LinkedHashSet<>();
+    if (json.has("book_ids")) {
+      JsonArray array = json.getAsJsonArray("book_ids");
+      for (JsonElement e : array) {
+        ids.add(e.getAsInt());
+      }
+    }
+    if (json.has("from") && json.has("to")) {
+      int from = json.get("from").getAsInt();
+      int to = json.get("to").getAsInt();
+      if (to < from || (long) to - from >= BATCH_MAX_BOOKS) {
+        throw new IllegalArgumentException("range must satisfy from <= to and hold at most " + BATCH_MAX_BOOKS
+            + " ids");
+      }
+      for (int id = from; id <= to; id++) {
+        ids.add(id);
+      }
+    }
+    return new ArrayList<>(ids);
+  }
+
+  private static void flushBulk(List<FetchedBook> bulk, Map<Integer, Map<String, Object>> outcomes) {
+    if (bulk.isEmpty()) {
+      return;
+    }
+    long firstSeq;
+    try {
+      firstSeq = changeFeed.reserve(bulk.size());
+    } catch (Exception e) {
+      for (FetchedBook f : bulk) {
+        outcomes.put(f.id, outcome(f.id, "failed", "change feed unavailable: " + e.getMessage()));
+      }
+      bulk.clear();
+      return;
+    }
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    for (int i = 0; i < bulk.size(); i++) {
+      FetchedBook f = bulk.get(i);
+      f.book.append("version", firstSeq + i);
+      writes.add(new ReplaceOneModel<>(Filters.eq("id", f.id), f.book, new ReplaceOptions().upsert(true)));
+    }
+    Set<Integer> failed = new HashSet<>();
+    List<Long> unused = new ArrayList<>();
+    try {
+      booksCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        int id = bulk.get(error.getIndex()).id;
+        failed.add(id);
+        outcomes.put(id, outcome(id, "failed", error.getMessage()));
+      }
+    } catch (Exception e) {
+      for (FetchedBook f : bulk) {
+        failed.add(f.id);
+        outcomes.put(f.id, outcome(f.id, "failed", e.getMessage()));
+      }
+    }
+    List<Document> stored = new ArrayList<>();
+    for (FetchedBook f : bulk) {
+      if (failed.contains(f.id)) {
+        unused.add(f.book.get("version", Number.class).longValue());
+      } else {
+        outcomes.put(f.id, outcome(f.id, "downloaded", null));
+        downloadCache.store(f.validators);
+        stored.add(f.book);
+      }
+    }
+    publishChanges(stored);
+    publishNoops(unused);
+    bulk.clear();
+  }
+
+  /*
+   * Appends one change event per stored book so the indexer picks it up.
+   * A failure here leaves the book stored but unannounced; it is logged and the
+   * book can still be indexed through /index/update.
+   */
+  private static void publishChanges(List<Document> books) {
+    List<Document> events = new ArrayList<>();
+    for (Document book : books) {
+      long seq = book.get("version", Number.class).longValue();
+      events.add(ChangeFeed.event(seq, book.getInteger("id"), book.getString("content_hash")));
+    }
+    try {
+      changeFeed.publish(events);
+    } catch (Exception e) {
+      System.err.println("Could not publish " + events.size() + " change events: " + e.getMessage());
+    }
+  }
+
+  /* Fills the seqs reserved for books whose write failed, so the feed has no gap. */
+  private static void publishNoops(List<Long> seqs) {
+    List<Document> events = new ArrayList<>();
+    for (long seq : seqs) {
+      events.add(ChangeFeed.noop(seq));
+    }
+    try {
+      changeFeed.publish(events);
+    } catch (Exception e) {
+      System.err.println("Could not publish " + events.size() + " no-op change events: " + e.getMessage());
+    }
+  }
+
+  private static Map<String, Object> outcome(int bookId, String status, String error) {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("book_id", bookId);
+    m.put("status", status);
+    if (error != null) {
+      m.put("error", error);
+    }
+    return m;
+  }
+
   public static void handleGetStatus(Context ctx) {
     String bookId = ctx.pathParam("book_id");
     int idNum;
@@ -125,85 +407,262 @@ public class IngestingAPI {
     ctx.result(gson.toJson(response));
   }
 
+  /*
+   * Lists stored book ids in ascending order.
+   * Query parameters: after (exclusive cursor), limit, from / to (inclusive id range)
+   * and count=exact|estimated|none. count defaults to estimated without a range and
+   * to none with one (the estimate is collection-wide); exact runs a full count and
+   * has to be asked for. The ids are streamed to the client while the cursor is read,
+   * so large listings are never held in memory.
+   */
   public static void handleListBooks(Context ctx) {
-    long bookCount = booksCollection.countDocuments();
-    List<Integer> idList = new ArrayList<>();
+    Integer after;
+    Integer limit;
+    Integer from;
+    Integer to;
+    try {
+      after = intParam(ctx, "after");
+      limit = intParam(ctx, "limit");
+      from = intParam(ctx, "from");
+      to = intParam(ctx, "to");
+    } catch (NumberFormatException e) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "after, limit, from and to must be numbers")));
+      return;
+    }
+    if (limit != null && limit <= 0) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "limit must be positive")));
+      return;
+    }
+    String countMode = Objects.requireNonNullElse(ctx.queryParam("count"),
+        from == null && to == null ? "estimated" : "none");
 
-    try (MongoCursor<Document> cursor = booksCollection.find().projection(Projections.include("id")).iterator()) {
-      while (cursor.hasNext()) {
-        Document doc = cursor.next();
-        idList.add(doc.getInteger("id"));
+    List<Bson> range = new ArrayList<>();
+    if (from != null) {
+      range.add(Filters.gte("id", from));
+    }
+    if (to != null) {
+      range.add(Filters.lte("id", to));
+    }
+    Bson rangeFilter = range.isEmpty() ? new Document() : Filters.and(range);
+    Bson pageFilter = after == null ? rangeFilter : Filters.and(rangeFilter, Filters.gt("id", after));
+
+    Long count;
+    switch (countMode) {
+      case "exact" -> count = booksCollection.countDocuments(rangeFilter);
+      // metadata based and collection-wide, ignores from / to
+      case "estimated" -> count = booksCollection.estimatedDocumentCount();
+      case "none" -> count = null;
+      default -> {
+        ctx.status(400).result(gson.toJson(Map.of("error", "count must be exact, estimated or none")));
+        return;
+      }
+    }
 
+    FindIterable<Document> find = booksCollection.find(pageFilter)
+        .projection(Projections.fields(Projections.include("id"), Projections.excludeId()))
+        .sort(Sorts.ascending("id"))
+        .batchSize(LIST_BATCH);
+    if (limit != null) {
+      find.limit(limit);
+    }
+
+    ctx.contentType("application/json");
+    try (JsonWriter out = new JsonWriter(new BufferedWriter(
+        new OutputStreamWriter(ctx.outputStream(), StandardCharsets.UTF_8)));
+        MongoCursor<Document> cursor = find.iterator()) {
+      out.beginObject();
+      if (count != null) {
+        out.name("count").value(count);
+      }
+      out.name("books").beginArray();
+      int written = 0;
+      Integer last = null;
+      while (cursor.hasNext()) {
+        last = cursor.next().getInteger("id");
+        out.value(last);
+        written++;
+      }
+      out.endArray();
+      if (limit != null && written == limit) {
+        out.name("next_after").value(last);
       }
+      out.endObject();
     } catch (Exception e) {
-      // TODO: handle exception
+      // the response is already partially sent, the client sees a truncated body
+      System.err.println("Listing books failed: " + e.getMessage());
     }
-    Map<String, Object> response = new LinkedHashMap<>();
-    response.put("count", bookCount);
-    response.put("books", idList);
-    ctx.result(gson.toJson(response));
   }
 
-  private static String downloadBook(String urlStr) throws IOException, InterruptedException {
-    URI uri = URI.create(urlStr);
-    HttpClient client = HttpClient.newHttpClient();
-    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
-    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+  private static Integer intParam(Context ctx, String name) {
+    String value = ctx.queryParam(name);
+    return value == null || value.isBlank() ? null : Integer.parseInt(value.trim());
+  }
+
+  /* Result of one download; book is null when the stored copy is still current. */
+  private static class FetchedBook {
+    final int id;
+    final Document book;
+    final DownloadCache.Entry validators;
 
-    if (response.statusCode() != 200) {
-      throw new IOException("Failed to download book: HTTP " + response.statusCode());
+    FetchedBook(int id, Document book, DownloadCache.Entry validators) {
+      this.id = id;
+      this.book = book;
+      this.validators = validators;
     }
+  }
+
+  /* Parsed body of a 200 response together with its cache validators. */
+  private static class Download {
+    final GutenbergParser.ParsedBook parsed;
+    final DownloadCache.Entry validators;
 
-    return response.body();
+    Download(GutenbergParser.ParsedBook parsed, DownloadCache.Entry validators) {
+      this.parsed = parsed;
+      this.validators = validators;
+    }
   }
 
-  private static String extractMetadata(String text, String key) {
-    for (String line : text.split("\n")) {
-      if (line.startsWith(key)) {
-        return line.substring(key.length()).trim();
+  /*
+   * Downloads one book from Project Gutenberg and turns it into its DB document.
+   * Known URLs are fetched conditionally; a 304 or an identical content hash
+   * yields an unchanged result unless force is set.
+   */
+  private static FetchedBook fetchBook(int idNum, boolean force) throws IOException, InterruptedException {
+    String urlString = GUTENBERG_BASE_URL + "/cache/epub/" + idNum + "/pg" + idNum + ".txt";
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(urlString)).GET();
+    // the validators describe the stored copy, so a book missing from Mongo is downloaded in full
+    boolean conditional = !force && isStored(idNum);
+    if (conditional) {
+      downloadCache.addConditionalHeaders(urlString, request);
+    }
+    // rate limiting, timeouts and retries happen in the scheduler; the body is streamed
+    // straight into the parser instead of being buffered as one String
+    Download download = scheduler.execute(request.build(), response -> {
+      if (response.statusCode() == 304) {
+        return null;
       }
+      try {
+        GutenbergParser.ParsedBook parsed = GutenbergParser.parse(response.body());
+        return new Download(parsed,
+            DownloadCache.fromResponse(urlString, response, ChangeFeed.contentHash(parsed.content)));
+      } catch (GutenbergParser.FormatException e) {
+        throw new DownloadScheduler.PermanentFailure(e.getMessage());
+      }
+    });
+    if (download == null) {
+      System.out.println("Book " + idNum + " not modified since last download.");
+      return new FetchedBook(idNum, null, null);
+    }
+    GutenbergParser.ParsedBook parsed = download.parsed;
+    DownloadCache.Entry validators = download.validators;
+    if (conditional && downloadCache.sameContent(urlString, validators.contentHash)) {
+      System.out.println("Book " + idNum + " downloaded again but its content is unchanged.");
+      downloadCache.store(validators);
+      return new FetchedBook(idNum, null, null);
+    }
+
+    System.out.println("Inserting book with id: " + idNum + " and title: " + parsed.title + " by " + parsed.author);
+
+    if (datalake != null) {
+      datalake.append(idNum, parsed.content, parsed.footer);
     }
-    return "";
+    Document book = buildDbEntry(idNum, parsed.content, parsed.title, parsed.author, parsed.releaseDate,
+        parsed.language, parsed.footer).append("content_hash", validators.contentHash);
+    return new FetchedBook(idNum, book, validators);
   }
 
-  private static String extractReleaseDate(String text) {
-    String releaseDate = "";
-    String[] lines = text.split("\n");
-    for (int i = 0; i < lines.length; i++) {
-      if (lines[i].startsWith("Release date:")) {
-        releaseDate = lines[i].substring("Release date:".length()).trim();
-        // Prüfen, ob nächste Zeile mit "Most recently updated:" beginnt
-        if (i + 1 < lines.length && lines[i + 1].trim().startsWith("Most recently updated:")) {
-          releaseDate += " | " + lines[i + 1].trim();
+  private static boolean isStored(int idNum) {
+    return booksCollection.find(Filters.eq("id", idNum)).projection(Projections.include("id")).first() != null;
+  }
+
+  /*
+   * Rewrites content and footer of all books whose codec differs from the requested
+   * one. Books are streamed in small batches so the migration never holds more than
+   * a few books in memory.
+   */
+  public static void handleMigrateCodec(Context ctx) {
+    String codec = Objects.requireNonNullElse(ctx.queryParam("codec"), BookCodec.configuredCodec()).toLowerCase();
+    if (!codec.equals(BookCodec.NONE) && !codec.equals(BookCodec.DEFLATE)) {
+      ctx.status(400).result(gson.toJson(Map.of("error", "Unknown codec: " + codec)));
+      return;
+    }
+    // books kept in the datalake have no text in Mongo and are skipped
+    Bson outdated = Filters.and(Filters.exists("content"), codec.equals(BookCodec.NONE)
+        ? Filters.exists("codec")
+        : Filters.ne("codec", codec));
+    int migrated = 0;
+    long bytesBefore = 0;
+    long bytesAfter = 0;
+    List<WriteModel<Document>> bulk = new ArrayList<>();
+    try (MongoCursor<Document> cursor = booksCollection.find(outdated)
+        .projection(Projections.include("id", "content", "footer"))
+        .batchSize(MIGRATION_BATCH)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Document doc = cursor.next();
+        String content = BookCodec.readText(doc, "content");
+        String footer = BookCodec.readText(doc, "footer");
+        bytesBefore += storedSize(doc.get("content")) + storedSize(doc.get("footer"));
+        Object newContent = BookCodec.toStored(content, codec);
+        Object newFooter = BookCodec.toStored(footer, codec);
+        bytesAfter += storedSize(newContent) + storedSize(newFooter);
+        Bson update = codec.equals(BookCodec.NONE)
+            ? Updates.combine(Updates.set("content", newContent), Updates.set("footer", newFooter),
+                Updates.unset("codec"))
+            : Updates.combine(Updates.set("content", newContent), Updates.set("footer", newFooter),
+                Updates.set("codec", codec));
+        bulk.add(new UpdateOneModel<>(Filters.eq("_id", doc.get("_id")), update));
+        migrated++;
+        if (bulk.size() >= MIGRATION_BATCH) {
+          booksCollection.bulkWrite(bulk, new BulkWriteOptions().ordered(false));
+          bulk.clear();
+          System.out.println("Migrated " + migrated + " books to codec " + codec);
         }
-        break;
       }
+      if (!bulk.isEmpty()) {
+        booksCollection.bulkWrite(bulk, new BulkWriteOptions().ordered(false));
+      }
+    } catch (Exception e) {
+      System.err.println("Migration failed: " + e.getMessage());
+      ctx.status(500).result(gson.toJson(Map.of("error", String.valueOf(e.getMessage()), "migrated", migrated)));
+      return;
     }
-    return releaseDate;
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("codec", codec);
+    response.put("migrated", migrated);
+    response.put("bytes_before", bytesBefore);
+    response.put("bytes_after", bytesAfter);
+    ctx.result(gson.toJson(response));
   }
 
-  private static String[] extractContent(String text) {
-    int start = text.indexOf("*** START OF THE PROJECT GUTENBERG EBOOK");
-    int end = text.indexOf("*** END OF THE PROJECT GUTENBERG EBOOK");
-
-    if (start != -1 && end != -1) {
-      String content = text.substring(start, end).replaceAll("(?m)^\\*{3}.*$", "").trim();
-      String footer = text.substring(end);
-      return new String[] { content, footer };
-    } else {
-      return null; // fallback
+  private static long storedSize(Object value) {
+    if (value instanceof String s) {
+      return s.length();
     }
+    if (value instanceof Binary b) {
+      return b.length();
+    }
+    return 0;
   }
 
   private static Document buildDbEntry(int book_id, String content, String title, String author, String releaseDate,
       String language, String footer) {
-    return new Document()
+    Document doc = new Document()
         .append("id", book_id)
         .append("title", title)
         .append("author", author)
         .append("release_date", releaseDate)
-        .append("language", language)
-        .append("content", content)
-        .append("footer", footer);
+        .append("language", language);
+    if (datalake != null) {
+      // Mongo keeps only the metadata, the text lives in the datalake
+      return doc.append("store", Datalake.STORE_DATALAKE);
+    }
+    String codec = BookCodec.configuredCodec();
+    doc.append("content", BookCodec.toStored(content, codec))
+        .append("footer", BookCodec.toStored(footer, codec));
+    if (!codec.equals(BookCodec.NONE)) {
+      doc.append("codec", codec);
+    }
+    return doc;
   }
 }
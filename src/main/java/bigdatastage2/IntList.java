@@ -0,0 +1,86 @@
+package bigdatastage2;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, used for postings so book ids are never boxed.
+ */
+public class IntList {
+
+  private int[] values;
+  private int size;
+
+  public IntList() {
+    this(4);
+  }
+
+  public IntList(int capacity) {
+    values = new int[Math.max(1, capacity)];
+  }
+
+  public void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size + (size >> 1) + 1);
+    }
+    values[size++] = value;
+  }
+
+  public void addAll(int[] more, int count) {
+    if (size + count > values.length) {
+      values = Arrays.copyOf(values, Math.max(size + count, size + (size >> 1) + 1));
+    }
+    System.arraycopy(more, 0, values, size, count);
+    size += count;
+  }
+
+  public int get(int index) {
+    return values[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /* Removes every occurrence of the value. */
+  public void remove(int value) {
+    int w = 0;
+    for (int r = 0; r < size; r++) {
+      if (values[r] != value) {
+        values[w++] = values[r];
+      }
+    }
+    size = w;
+  }
+
+  /* Sorts in place and removes duplicates. */
+  public void sortUnique() {
+    if (size < 2) {
+      return;
+    }
+    Arrays.sort(values, 0, size);
+    int w = 1;
+    for (int r = 1; r < size; r++) {
+      if (values[r] != values[w - 1]) {
+        values[w++] = values[r];
+      }
+    }
+    size = w;
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  /* Backing array; only the first size() entries are valid. */
+  int[] raw() {
+    return values;
+  }
+}
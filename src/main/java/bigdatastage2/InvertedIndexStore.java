@@ -0,0 +1,878 @@
+package bigdatastage2;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The inverted index in MongoDB, spread over the collections of a Layout: INDEX_SHARDS
+ * hash shards (ns<id>.h000 ...), or collections named after the first letter of
+ * the term for the original namespace. Both the indexer (writes) and the search
+ * service (reads) route terms through here.
+ *
+ * Collections belong to a namespace (a name prefix, "" for the original layout).
+ * Rebuilds fill a fresh shadow namespace and then switch the pointer document in
+ * index_meta, which also records the namespace's shard count; stores created
+ * without a layout follow that pointer, so readers move to the new index within
+ * INDEX_POINTER_CHECK_MS. A hash-sharded namespace spreads writes and lookups
+ * evenly over its collections (and, with sharded collections, over Mongo shards);
+ * changing the shard count is a reshard job that copies into a new namespace.
+ *
+ * Each namespace also keeps a forward index (<ns>forward, {_id: book id, terms, hash})
+ * with the terms every book was last indexed with, so a changed book is updated by
+ * diff and a deleted one can be removed from exactly its postings. With
+ * INDEX_POSITIONS it also keeps the token positions of every book (<ns>positions).
+ *
+ * Two storage formats (INDEX_FORMAT):
+ * array - one document {term, postings: [ids]} per term, grown with $addToSet
+ * blocks - postings split into delta/varint encoded block documents, see PostingBlocks
+ */
+public class InvertedIndexStore {
+
+  public static final String FORMAT_ARRAY = "array";
+  public static final String FORMAT_BLOCKS = "blocks";
+  public static final String META_COLLECTION = "index_meta";
+  private static final String NAMESPACE_PREFIX = "ns";
+  private static final String FORWARD = "forward";
+  private static final String POSITIONS = "positions";
+  private static final long POINTER_CHECK_MS = Config.getLong("INDEX_POINTER_CHECK_MS", 1000);
+
+  private static final int FNV_PRIME = 0x01000193;
+  private static final int DEFAULT_SHARDS = Config.getInt("INDEX_SHARDS", 16);
+  private static final int WRITE_THREADS = Config.getInt("INDEX_WRITE_THREADS", 8);
+  private static final ExecutorService WRITERS = Executors.newFixedThreadPool(WRITE_THREADS, r -> {
+    Thread t = new Thread(r, "index-writer");
+    t.setDaemon(true);
+    return t;
+  });
+  private static final int READ_THREADS = Config.getInt("INDEX_READ_THREADS", 8);
+  private static final ExecutorService READERS = Executors.newFixedThreadPool(READ_THREADS, r -> {
+    Thread t = new Thread(r, "index-reader");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Where the terms of a namespace live: first-letter buckets (shards == 0, the
+   * original layout) or shards collections picked by a stable hash of the term.
+   */
+  public static final class Layout {
+    private final String namespace;
+    private final int shards;
+    private final String[] shardNames;
+
+    public Layout(String namespace, int shards) {
+      this.namespace = namespace;
+      this.shards = Math.max(0, shards);
+      this.shardNames = new String[this.shards];
+      for (int i = 0; i < this.shards; i++) {
+        shardNames[i] = namespace + String.format("h%03d", i);
+      }
+    }
+
+    public String namespace() {
+      return namespace;
+    }
+
+    public int shards() {
+      return shards;
+    }
+
+    String collectionFor(String term) {
+      return shards == 0 ? namespace + term.substring(0, 1) : shardNames[shardOf(term, shards)];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Layout l && l.namespace.equals(namespace) && l.shards == shards;
+    }
+
+    @Override
+    public int hashCode() {
+      return namespace.hashCode() * 31 + shards;
+    }
+  }
+
+  // removals and compaction read blocks and rewrite them by _id, so per collection they take turns
+  private static final Map<String, Object> BLOCK_LOCKS = new ConcurrentHashMap<>();
+
+  private final MongoDatabase db;
+  private final String format;
+  private final boolean followPointer;
+  private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+  private volatile Layout layout;
+  private volatile long pointerCheckedAt;
+
+  /* The live index; follows the pointer when a rebuild swaps namespaces. */
+  public InvertedIndexStore(MongoDatabase db) {
+    this(db, null, true);
+  }
+
+  /* An index bound to one layout, e.g. the shadow of a running rebuild. */
+  public InvertedIndexStore(MongoDatabase db, Layout layout) {
+    this(db, layout, false);
+  }
+
+  /* An index bound to a namespace whose layout does not matter, e.g. to drop it. */
+  public InvertedIndexStore(MongoDatabase db, String namespace) {
+    this(db, new Layout(namespace, 0), false);
+  }
+
+  private InvertedIndexStore(MongoDatabase db, Layout layout, boolean followPointer) {
+    this.db = db;
+    this.format = Config.get("INDEX_FORMAT", FORMAT_ARRAY).toLowerCase();
+    this.followPointer = followPointer;
+    this.layout = followPointer ? readPointer(db) : layout;
+    this.pointerCheckedAt = System.currentTimeMillis();
+  }
+
+  public MongoDatabase database() {
+    return db;
+  }
+
+  public boolean blockFormat() {
+    return FORMAT_BLOCKS.equals(format);
+  }
+
+  /* Shard count for namespaces created by rebuilds, from INDEX_SHARDS (0 = first-letter buckets). */
+  public static int defaultShards() {
+    return DEFAULT_SHARDS;
+  }
+
+  /*
+   * Shard of a term: 32-bit FNV-1a over its UTF-8 bytes, modulo the shard count.
+   * Depends only on the term, so any process (or a script in another language)
+   * routes it to the same shard.
+   */
+  public static int shardOf(String term, int shards) {
+    int h = 0x811c9dc5;
+    for (int i = 0; i < term.length(); i++) {
+      int cp = term.codePointAt(i);
+      if (cp < 0x80) {
+        h = (h ^ cp) * FNV_PRIME;
+      } else if (cp < 0x800) {
+        h = (h ^ (0xc0 | cp >> 6)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp & 0x3f)) * FNV_PRIME;
+      } else if (cp < 0x10000) {
+        h = (h ^ (0xe0 | cp >> 12)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp >> 6 & 0x3f)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp & 0x3f)) * FNV_PRIME;
+      } else {
+        h = (h ^ (0xf0 | cp >> 18)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp >> 12 & 0x3f)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp >> 6 & 0x3f)) * FNV_PRIME;
+        h = (h ^ (0x80 | cp & 0x3f)) * FNV_PRIME;
+        i++;
+      }
+    }
+    return Integer.remainderUnsigned(h, shards);
+  }
+
+  public MongoCollection<Document> collectionFor(String term) {
+    return db.getCollection(layout().collectionFor(term));
+  }
+
+  // ---------- namespaces ----------
+
+  public Layout layout() {
+    long now = System.currentTimeMillis();
+    if (followPointer && now - pointerCheckedAt > POINTER_CHECK_MS) {
+      pointerCheckedAt = now;
+      Layout live = readPointer(db);
+      if (!live.equals(layout)) {
+        System.out.println("Index namespace switched to '" + live.namespace() + "' (" + live.shards() + " shards)");
+        layout = live;
+      }
+    }
+    return layout;
+  }
+
+  public String namespace() {
+    return layout().namespace();
+  }
+
+  /* Re-reads the pointer now instead of at the next check interval. */
+  public void refreshPointer() {
+    pointerCheckedAt = 0;
+    layout();
+  }
+
+  public static String namespaceFor(String rebuildId) {
+    return NAMESPACE_PREFIX + rebuildId + ".";
+  }
+
+  /* Layout the live index is in; "" with letter buckets for the original collections. */
+  public static Layout readPointer(MongoDatabase db) {
+    Document pointer = db.getCollection(META_COLLECTION).find(Filters.eq("_id", "live")).first();
+    if (pointer == null) {
+      return new Layout("", 0);
+    }
+    Integer shards = pointer.getInteger("shards");
+    return new Layout(pointer.getString("namespace"), shards == null ? 0 : shards);
+  }
+
+  /* Points readers at another layout; a single-document write, so the switch is atomic. */
+  public static void swapPointer(MongoDatabase db, Layout layout) {
+    db.getCollection(META_COLLECTION).replaceOne(Filters.eq("_id", "live"),
+        new Document("_id", "live")
+            .append("namespace", layout.namespace())
+            .append("shards", layout.shards())
+            .append("swapped_at", new Date()),
+        new ReplaceOptions().upsert(true));
+  }
+
+  /* Names of the posting collections of this store's namespace. */
+  public List<String> collectionNames() {
+    List<String> names = allCollectionNames();
+    names.remove(forwardCollectionName());
+    names.remove(positionsCollectionName());
+    return names;
+  }
+
+  /* Names of all collections of this store's namespace, forward entries included. */
+  private List<String> allCollectionNames() {
+    String ns = namespace();
+    List<String> names = new ArrayList<>();
+    for (String name : db.listCollectionNames()) {
+      boolean owned = ns.isEmpty()
+          ? !name.startsWith(NAMESPACE_PREFIX) && !name.startsWith("index_") && !name.startsWith("system.")
+          : name.startsWith(ns);
+      if (owned) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  /* Approximate number of term documents (array) or blocks, for progress reporting. */
+  public long documentCount() {
+    long n = 0;
+    for (String name : collectionNames()) {
+      n += db.getCollection(name).estimatedDocumentCount();
+    }
+    return n;
+  }
+
+  // ---------- reads ----------
+
+  /*
+   * Sorted postings of several terms at once: one $in query per collection, the
+   * collections queried in parallel. Unknown terms map to an empty array.
+   */
+  public Map<String, int[]> readPostings(Collection<String> terms) {
+    Layout layout = layout();
+    Map<String, List<String>> byCollection = new HashMap<>();
+    for (String term : terms) {
+      byCollection.computeIfAbsent(layout.collectionFor(term), c -> new ArrayList<>()).add(term);
+    }
+    List<Future<Map<String, int[]>>> futures = new ArrayList<>(byCollection.size());
+    for (Map.Entry<String, List<String>> entry : byCollection.entrySet()) {
+      futures.add(READERS.submit(() -> readCollection(db.getCollection(entry.getKey()), entry.getValue())));
+    }
+    Map<String, int[]> postings = new HashMap<>();
+    for (Future<Map<String, int[]>> f : futures) {
+      try {
+        postings.putAll(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while reading postings", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw cause instanceof RuntimeException re ? re : new IllegalStateException(cause);
+      }
+    }
+    for (String term : terms) {
+      postings.putIfAbsent(term, new int[0]);
+    }
+    return postings;
+  }
+
+  private Map<String, int[]> readCollection(MongoCollection<Document> col, List<String> terms) {
+    Map<String, int[]> postings = new HashMap<>();
+    if (!blockFormat()) {
+      for (Document doc : col.find(Filters.in("term", terms))) {
+        List<Integer> list = doc.getList("postings", Integer.class);
+        IntList ids = new IntList(list.size());
+        for (Integer id : list) {
+          ids.add(id);
+        }
+        ids.sortUnique();
+        postings.put(doc.getString("term"), ids.toArray());
+      }
+      return postings;
+    }
+    Map<String, List<Document>> blocks = new HashMap<>();
+    for (Document block : col.find(Filters.in("term", terms))) {
+      blocks.computeIfAbsent(block.getString("term"), t -> new ArrayList<>()).add(block);
+    }
+    for (Map.Entry<String, List<Document>> entry : blocks.entrySet()) {
+      List<Document> termBlocks = entry.getValue();
+      termBlocks.sort(Comparator.comparingInt(b -> b.getInteger("min")));
+      postings.put(entry.getKey(), PostingBlocks.decodeAll(termBlocks));
+    }
+    return postings;
+  }
+
+  // ---------- incremental updates ----------
+
+  /*
+   * Adds one book to the postings of all its terms, one unordered bulk per collection.
+   * Array format upserts with $addToSet, block format appends a one-id tail block.
+   */
+  public void addBook(Collection<String> terms, int bookId) {
+    Layout layout = layout();
+    Map<String, List<WriteModel<Document>>> bucketWrites = new HashMap<>();
+    int[] single = { bookId };
+    for (String term : terms) {
+      WriteModel<Document> write = blockFormat()
+          ? new InsertOneModel<>(PostingBlocks.blockDocument(term, PostingBlocks.TAIL, single, 0, 1))
+          : new UpdateOneModel<>(
+              Filters.eq("term", term),
+              Updates.addToSet("postings", bookId),
+              new UpdateOptions().upsert(true));
+      bucketWrites.computeIfAbsent(layout.collectionFor(term), k -> new ArrayList<>()).add(write);
+    }
+    writeAll(bucketWrites, false);
+  }
+
+  /*
+   * Adds the postings of many books at once: one $addToSet/$each upsert (array format)
+   * or a run of tail blocks (block format) per term, one unordered bulk per collection.
+   */
+  public void addPostings(Map<String, IntList> postings) {
+    Layout layout = layout();
+    Map<String, List<WriteModel<Document>>> bucketWrites = new HashMap<>();
+    for (Map.Entry<String, IntList> e : postings.entrySet()) {
+      String term = e.getKey();
+      IntList ids = e.getValue();
+      ids.sortUnique();
+      List<WriteModel<Document>> writes = bucketWrites.computeIfAbsent(layout.collectionFor(term),
+          k -> new ArrayList<>());
+      if (blockFormat()) {
+        int[] sorted = ids.toArray();
+        for (int from = 0; from < sorted.length; from += PostingBlocks.BLOCK_SIZE) {
+          int to = Math.min(sorted.length, from + PostingBlocks.BLOCK_SIZE);
+          writes.add(new InsertOneModel<>(PostingBlocks.blockDocument(term, PostingBlocks.TAIL, sorted, from, to)));
+        }
+      } else {
+        List<Integer> boxed = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+          boxed.add(ids.get(i));
+        }
+        writes.add(new UpdateOneModel<>(
+            Filters.eq("term", term),
+            Updates.addEachToSet("postings", boxed),
+            new UpdateOptions().upsert(true)));
+      }
+    }
+    writeAll(bucketWrites, false);
+  }
+
+  /*
+   * Removes one book from the postings of the given terms: $pull plus deletion of
+   * emptied term documents (array format), or a rewrite of just the blocks whose
+   * [min, max] range covers the id (block format), holding the collection's block
+   * lock so compaction cannot merge a block between its read and rewrite.
+   */
+  public void removeBook(Collection<String> terms, int bookId) {
+    Layout layout = layout();
+    Map<String, List<String>> bucketTerms = new HashMap<>();
+    for (String term : terms) {
+      bucketTerms.computeIfAbsent(layout.collectionFor(term), k -> new ArrayList<>()).add(term);
+    }
+    if (blockFormat()) {
+      List<Future<?>> futures = new ArrayList<>(bucketTerms.size());
+      for (Map.Entry<String, List<String>> entry : bucketTerms.entrySet()) {
+        futures.add(WRITERS.submit(() -> removeFromBlocks(entry.getKey(), entry.getValue(), bookId)));
+      }
+      for (Future<?> f : futures) {
+        await(f);
+      }
+      return;
+    }
+    Map<String, List<WriteModel<Document>>> bucketWrites = new HashMap<>();
+    for (Map.Entry<String, List<String>> entry : bucketTerms.entrySet()) {
+      List<WriteModel<Document>> writes = new ArrayList<>();
+      for (String term : entry.getValue()) {
+        writes.add(new UpdateOneModel<>(Filters.eq("term", term), Updates.pull("postings", bookId)));
+      }
+      // ordered, so this runs after the pulls
+      writes.add(new DeleteManyModel<>(Filters.and(Filters.in("term", entry.getValue()),
+          Filters.size("postings", 0))));
+      bucketWrites.put(entry.getKey(), writes);
+    }
+    writeAll(bucketWrites, true);
+  }
+
+  private void removeFromBlocks(String collection, List<String> terms, int bookId) {
+    MongoCollection<Document> col = db.getCollection(collection);
+    Bson covering = Filters.and(Filters.in("term", terms), Filters.lte("min", bookId), Filters.gte("max", bookId));
+    synchronized (blockLock(collection)) {
+      List<WriteModel<Document>> writes = new ArrayList<>();
+      for (Document block : col.find(covering)) {
+        Document rest = PostingBlocks.withoutId(block, bookId);
+        if (rest == null) {
+          writes.add(new DeleteOneModel<>(Filters.eq("_id", block.get("_id"))));
+        } else if (rest != block) {
+          writes.add(new ReplaceOneModel<>(Filters.eq("_id", block.get("_id")), rest));
+        }
+      }
+      if (!writes.isEmpty()) {
+        col.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+      }
+    }
+  }
+
+  private static Object blockLock(String collection) {
+    return BLOCK_LOCKS.computeIfAbsent(collection, c -> new Object());
+  }
+
+  /* Runs the bulks of different collections in parallel on the shared writer pool. */
+  private void writeAll(Map<String, List<WriteModel<Document>>> byCollection, boolean ordered) {
+    List<Future<?>> futures = new ArrayList<>(byCollection.size());
+    for (Map.Entry<String, List<WriteModel<Document>>> entry : byCollection.entrySet()) {
+      futures.add(WRITERS.submit(() -> {
+        ensureTermIndex(entry.getKey(), false);
+        db.getCollection(entry.getKey()).bulkWrite(entry.getValue(), new BulkWriteOptions().ordered(ordered));
+      }));
+    }
+    for (Future<?> f : futures) {
+      await(f);
+    }
+  }
+
+  private static void await(Future<?> f) {
+    try {
+      f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while writing postings", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException re ? re : new IllegalStateException(cause);
+    }
+  }
+
+  private void ensureTermIndex(String collection, boolean unique) {
+    if (indexedCollections.add(collection)) {
+      MongoCollection<Document> col = db.getCollection(collection);
+      if (blockFormat()) {
+        col.createIndex(Indexes.ascending("term", "min"));
+      } else {
+        col.createIndex(Indexes.ascending("term"), new IndexOptions().unique(unique));
+      }
+    }
+  }
+
+  // ---------- forward index ----------
+
+  /* The terms a book was last indexed with, and their termsHash. */
+  public record ForwardEntry(List<String> terms, long hash) {
+  }
+
+  private String forwardCollectionName() {
+    return namespace() + FORWARD;
+  }
+
+  private MongoCollection<Document> forwardCollection() {
+    return db.getCollection(forwardCollectionName());
+  }
+
+  /* Null if the book is not in this namespace or was indexed before forward entries existed. */
+  public ForwardEntry readForward(int bookId) {
+    Document doc = forwardCollection().find(Filters.eq("_id", bookId)).first();
+    if (doc == null) {
+      return null;
+    }
+    return new ForwardEntry(doc.getList("terms", String.class), doc.get("hash", Number.class).longValue());
+  }
+
+  public void writeForward(int bookId, Collection<String> terms) {
+    forwardCollection().replaceOne(Filters.eq("_id", bookId),
+        new Document("_id", bookId)
+            .append("terms", new ArrayList<>(terms))
+            .append("hash", termsHash(terms))
+            .append("updated_at", new Date()),
+        new ReplaceOptions().upsert(true));
+  }
+
+  public void deleteForward(int bookId) {
+    forwardCollection().deleteOne(Filters.eq("_id", bookId));
+  }
+
+  /*
+   * Forward entry recovered from the postings, for a book indexed before forward
+   * entries existed: every posting collection is scanned for the id, in parallel.
+   * Null if no postings hold the book.
+   */
+  public ForwardEntry scanForward(int bookId) {
+    List<Future<List<String>>> futures = new ArrayList<>();
+    for (String name : collectionNames()) {
+      futures.add(READERS.submit(() -> termsHolding(db.getCollection(name), bookId)));
+    }
+    Set<String> terms = new HashSet<>();
+    for (Future<List<String>> f : futures) {
+      try {
+        terms.addAll(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while scanning postings", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw cause instanceof RuntimeException re ? re : new IllegalStateException(cause);
+      }
+    }
+    if (terms.isEmpty()) {
+      return null;
+    }
+    return new ForwardEntry(new ArrayList<>(terms), termsHash(terms));
+  }
+
+  private List<String> termsHolding(MongoCollection<Document> col, int bookId) {
+    List<String> terms = new ArrayList<>();
+    if (!blockFormat()) {
+      for (Document doc : col.find(Filters.eq("postings", bookId)).projection(Projections.include("term"))) {
+        terms.add(doc.getString("term"));
+      }
+      return terms;
+    }
+    for (Document block : col.find(Filters.and(Filters.lte("min", bookId), Filters.gte("max", bookId)))) {
+      if (PostingBlocks.withoutId(block, bookId) != block) {
+        terms.add(block.getString("term"));
+      }
+    }
+    return terms;
+  }
+
+  /* Copies the forward entries and positions of another namespace into this (empty) one. */
+  public long copyBookEntriesFrom(InvertedIndexStore source) {
+    return copyCollection(source.forwardCollection(), forwardCollection())
+        + copyCollection(source.positionsCollection(), positionsCollection());
+  }
+
+  private static long copyCollection(MongoCollection<Document> from, MongoCollection<Document> to) {
+    List<Document> batch = new ArrayList<>();
+    long copied = 0;
+    for (Document doc : from.find()) {
+      batch.add(doc);
+      if (batch.size() == 1000) {
+        to.insertMany(batch);
+        copied += batch.size();
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      to.insertMany(batch);
+      copied += batch.size();
+    }
+    return copied;
+  }
+
+  /* Order-independent 64-bit hash of a term set: the sum of a mixed FNV-1a hash per term. */
+  public static long termsHash(Collection<String> terms) {
+    long sum = 0;
+    for (String term : terms) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < term.length(); i++) {
+        h = (h ^ term.charAt(i)) * 0x100000001b3L;
+      }
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      sum += h;
+    }
+    return sum;
+  }
+
+  // ---------- positions ----------
+
+  /*
+   * Optional positional index (INDEX_POSITIONS): one document per book,
+   * {_id: book id, p: {term: varint position gaps}}, so a phrase query reads the
+   * positions of just its terms for just the candidate books with one $in.
+   */
+  public static boolean positionsEnabled() {
+    return Config.getBool("INDEX_POSITIONS", false);
+  }
+
+  private String positionsCollectionName() {
+    return namespace() + POSITIONS;
+  }
+
+  private MongoCollection<Document> positionsCollection() {
+    return db.getCollection(positionsCollectionName());
+  }
+
+  public void writePositions(int bookId, Map<String, IntList> positions) {
+    Document p = new Document();
+    for (Map.Entry<String, IntList> e : positions.entrySet()) {
+      IntList list = e.getValue();
+      p.append(e.getKey(), new Binary(PostingBlocks.encode(list.raw(), 0, list.size())));
+    }
+    positionsCollection().replaceOne(Filters.eq("_id", bookId),
+        new Document("_id", bookId).append("p", p),
+        new ReplaceOptions().upsert(true));
+  }
+
+  public void deletePositions(int bookId) {
+    positionsCollection().deleteOne(Filters.eq("_id", bookId));
+  }
+
+  /*
+   * Positions of the given terms in the given books: book -> term -> sorted positions.
+   * Books without a positions document are missing from the result; terms a book
+   * does not contain are missing from its map.
+   */
+  public Map<Integer, Map<String, int[]>> readPositions(Collection<Integer> bookIds, Collection<String> terms) {
+    List<String> fields = new ArrayList<>();
+    for (String term : terms) {
+      fields.add("p." + term);
+    }
+    Map<Integer, Map<String, int[]>> result = new HashMap<>();
+    for (Document doc : positionsCollection().find(Filters.in("_id", bookIds)).projection(Projections.include(fields))) {
+      Map<String, int[]> byTerm = new HashMap<>();
+      Document p = doc.get("p", Document.class);
+      if (p != null) {
+        for (Map.Entry<String, Object> e : p.entrySet()) {
+          byTerm.put(e.getKey(), PostingBlocks.decodeAll(((Binary) e.getValue()).getData()));
+        }
+      }
+      result.put(doc.getInteger("_id"), byTerm);
+    }
+    return result;
+  }
+
+  // ---------- block compaction ----------
+
+  /*
+   * Merges the tail blocks of up to maxTerms terms, together with the term's last
+   * full-numbered block if that one is not full, into new blocks numbered after the
+   * full ones; full blocks stay untouched. Blocks may therefore overlap in id range,
+   * which readers handle. The new blocks are inserted before the old ones are
+   * deleted, so readers see duplicates (which decoding removes) but never missing
+   * ids. Each term is read and rewritten under the collection's block lock, so a
+   * concurrent removeBook is not undone. Returns the number of terms compacted.
+   */
+  public int compactTails(int maxTerms) {
+    if (!blockFormat()) {
+      return 0;
+    }
+    int compacted = 0;
+    for (String name : collectionNames()) {
+      MongoCollection<Document> col = db.getCollection(name);
+      Set<String> terms = new HashSet<>();
+      try (MongoCursor<Document> cursor = col.find(Filters.eq("block", PostingBlocks.TAIL))
+          .projection(new Document("term", 1))
+          .limit(maxTerms * 8)
+          .iterator()) {
+        while (cursor.hasNext() && terms.size() < maxTerms - compacted) {
+          terms.add(cursor.next().getString("term"));
+        }
+      }
+      for (String term : terms) {
+        synchronized (blockLock(name)) {
+          compactTerm(col, term);
+        }
+        compacted++;
+      }
+      if (compacted >= maxTerms) {
+        break;
+      }
+    }
+    return compacted;
+  }
+
+  private static void compactTerm(MongoCollection<Document> col, String term) {
+    List<Document> blocks = col.find(Filters.and(Filters.eq("term", term), Filters.eq("block", PostingBlocks.TAIL)))
+        .into(new ArrayList<>());
+    Document last = col.find(Filters.and(Filters.eq("term", term), Filters.gte("block", 0)))
+        .sort(Sorts.descending("block"))
+        .first();
+    int firstBlock = last == null ? 0 : last.getInteger("block") + 1;
+    if (last != null && last.getInteger("count") < PostingBlocks.BLOCK_SIZE) {
+      blocks.add(last);
+      firstBlock = last.getInteger("block");
+    }
+    if (blocks.isEmpty()) {
+      return;
+    }
+    int[] ids = PostingBlocks.decodeAll(blocks);
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    for (Document block : PostingBlocks.toBlocks(term, ids)) {
+      block.put("block", block.getInteger("block") + firstBlock);
+      writes.add(new InsertOneModel<>(block));
+    }
+    for (Document old : blocks) {
+      writes.add(new DeleteOneModel<>(Filters.eq("_id", old.get("_id"))));
+    }
+    // ordered, so all inserts happen before the first delete
+    col.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+  }
+
+  // ---------- full rebuilds ----------
+
+  /* Drops every collection of this store's namespace. */
+  public void dropAll() {
+    for (String name : allCollectionNames()) {
+      db.getCollection(name).drop();
+    }
+    indexedCollections.clear();
+  }
+
+  public BulkLoader bulkLoader(int batchSize) {
+    return new BulkLoader(batchSize);
+  }
+
+  /* Receives one term of a full scan with its complete, sorted postings. */
+  @FunctionalInterface
+  public interface TermConsumer {
+    void accept(String term, int[] postings) throws Exception;
+  }
+
+  /*
+   * Streams every term of this namespace with its complete postings, collection by
+   * collection. Block documents are read in (term, min) order, so a term's blocks
+   * arrive together and are merged before the term is handed on.
+   */
+  public void forEachTerm(TermConsumer consumer) throws Exception {
+    for (String name : collectionNames()) {
+      MongoCollection<Document> col = db.getCollection(name);
+      if (!blockFormat()) {
+        try (MongoCursor<Document> cursor = col.find().iterator()) {
+          while (cursor.hasNext()) {
+            Document doc = cursor.next();
+            List<Integer> postings = doc.getList("postings", Integer.class);
+            IntList ids = new IntList(postings.size());
+            for (Integer id : postings) {
+              ids.add(id);
+            }
+            ids.sortUnique();
+            consumer.accept(doc.getString("term"), ids.toArray());
+          }
+        }
+        continue;
+      }
+      try (MongoCursor<Document> cursor = col.find().sort(Sorts.ascending("term", "min")).iterator()) {
+        String term = null;
+        List<Document> blocks = new ArrayList<>();
+        while (cursor.hasNext()) {
+          Document block = cursor.next();
+          if (term != null && !term.equals(block.getString("term"))) {
+            consumer.accept(term, PostingBlocks.decodeAll(blocks));
+            blocks.clear();
+          }
+          term = block.getString("term");
+          blocks.add(block);
+        }
+        if (term != null) {
+          consumer.accept(term, PostingBlocks.decodeAll(blocks));
+        }
+      }
+    }
+  }
+
+  /*
+   * Inserts complete postings, one document (array format) or a run of full blocks
+   * (block format) per term, in unordered bulks per collection. Full bulks are
+   * written on the shared writer pool, so different shards load in parallel while
+   * the caller keeps producing. Only valid on empty collections; the term index is
+   * created on close so it is built once instead of maintained per insert.
+   */
+  public class BulkLoader implements AutoCloseable {
+    private final int batchSize;
+    private final Map<String, List<WriteModel<Document>>> pending = new HashMap<>();
+    private final Set<String> touched = new HashSet<>();
+    private final ArrayDeque<Future<?>> inFlight = new ArrayDeque<>();
+    private long documents = 0;
+
+    private BulkLoader(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public void insert(String term, int[] postings) {
+      String collection = layout().collectionFor(term);
+      List<WriteModel<Document>> writes = pending.computeIfAbsent(collection, k -> new ArrayList<>());
+      if (blockFormat()) {
+        for (Document block : PostingBlocks.toBlocks(term, postings)) {
+          writes.add(new InsertOneModel<>(block));
+        }
+      } else {
+        List<Integer> ids = new ArrayList<>(postings.length);
+        for (int id : postings) {
+          ids.add(id);
+        }
+        writes.add(new InsertOneModel<>(new Document("term", term).append("postings", ids)));
+      }
+      if (writes.size() >= batchSize) {
+        flush(collection, writes);
+        pending.remove(collection);
+      }
+    }
+
+    /* Hands a full bulk to the pool; waits for the oldest one when too many are pending. */
+    private void flush(String collection, List<WriteModel<Document>> writes) {
+      if (writes.isEmpty()) {
+        return;
+      }
+      while (inFlight.size() >= WRITE_THREADS * 2) {
+        await(inFlight.poll());
+      }
+      inFlight.add(WRITERS.submit(() ->
+          db.getCollection(collection).bulkWrite(writes, new BulkWriteOptions().ordered(false))));
+      documents += writes.size();
+      touched.add(collection);
+    }
+
+    public long documents() {
+      return documents;
+    }
+
+    @Override
+    public void close() {
+      for (Map.Entry<String, List<WriteModel<Document>>> e : pending.entrySet()) {
+        flush(e.getKey(), e.getValue());
+      }
+      pending.clear();
+      while (!inFlight.isEmpty()) {
+        await(inFlight.poll());
+      }
+      for (String collection : touched) {
+        ensureTermIndex(collection, true);
+      }
+    }
+  }
+}
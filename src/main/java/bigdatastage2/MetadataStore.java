@@ -0,0 +1,346 @@
+package bigdatastage2;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * In-memory columns of the book metadata the search filters on, so author, language
+ * and year clauses are answered without a query on the books collection.
+ *
+ * author and language are dictionary encoded (one code per distinct value, a column
+ * of codes indexed by book id) with a bitmap of the books per code; year is an int
+ * column parsed once from release_date, with a bitmap per decade. A clause is
+ * resolved against the dictionary - the pattern is matched once per distinct value,
+ * not once per book - and the bitmaps of the matching values are ANDed with the
+ * candidates. Year ranges OR the decades they cover and check the year column only in
+ * the two partial decades at their ends.
+ *
+ * A refresher thread loads all books at start, then reads the books whose version
+ * (the change feed seq the ingester stamps on every write) is newer than what it has
+ * seen, every METADATA_REFRESH_MS. Each round re-reads the previous round's versions
+ * too, for writes that reserved their seq earlier but landed later; a full reload
+ * every METADATA_RELOAD_MS catches anything else.
+ */
+public class MetadataStore {
+
+  private static final Bson PROJECTION = Projections.include("id", "author", "language", "release_date", "version");
+
+  private final MongoCollection<Document> books;
+  private final long refreshMs = Config.getLong("METADATA_REFRESH_MS", 2000);
+  private final long reloadMs = Config.getLong("METADATA_RELOAD_MS", 600_000);
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile State state;
+  private volatile long seenVersion = 0;
+  private long rereadFrom = 0;
+  private long loadedAt = 0;
+  private volatile long lastRefresh = 0;
+
+  public MetadataStore(MongoCollection<Document> books) {
+    this.books = books;
+  }
+
+  public static boolean enabled() {
+    return Config.getBool("METADATA_STORE", true);
+  }
+
+  /* False until the first full load finished; callers query the collection meanwhile. */
+  public boolean ready() {
+    return state != null;
+  }
+
+  // ---------- columns ----------
+
+  /* A dictionary-encoded column: codes[id] is 1 + the value's code, 0 if the book has none. */
+  private static final class Column {
+    final List<String> values = new ArrayList<>();
+    final Map<String, Integer> codes = new HashMap<>();
+    final List<CompressedBitmap> bitmaps = new ArrayList<>();
+    int[] byId = new int[0];
+
+    void set(int id, String value) {
+      int old = byId[id] - 1;
+      int code = value == null || value.isBlank() ? -1 : codes.computeIfAbsent(value, v -> {
+        values.add(v);
+        bitmaps.add(new CompressedBitmap());
+        return values.size() - 1;
+      });
+      if (old == code) {
+        return;
+      }
+      if (old >= 0) {
+        bitmaps.get(old).remove(id);
+      }
+      if (code >= 0) {
+        bitmaps.get(code).add(id);
+      }
+      byId[id] = code + 1;
+    }
+
+    /* Books whose value matches the pattern anywhere, case-insensitively. */
+    CompressedBitmap matching(String regex) {
+      Pattern pattern;
+      try {
+        pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+      } catch (PatternSyntaxException e) {
+        pattern = Pattern.compile(Pattern.quote(regex), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+      }
+      CompressedBitmap out = new CompressedBitmap();
+      for (int code = 0; code < values.size(); code++) {
+        if (pattern.matcher(values.get(code)).find()) {
+          out = CompressedBitmap.or(out, bitmaps.get(code));
+        }
+      }
+      return out;
+    }
+  }
+
+  private static final class State {
+    final CompressedBitmap all = new CompressedBitmap();
+    final Column author = new Column();
+    final Column language = new Column();
+    final TreeMap<Integer, CompressedBitmap> decades = new TreeMap<>();
+    int[] years = new int[0];
+
+    void apply(Document book) {
+      Integer id = book.getInteger("id");
+      if (id == null || id < 0) {
+        return;
+      }
+      if (id >= years.length) {
+        int capacity = Math.max(id + 1, years.length * 2);
+        years = Arrays.copyOf(years, capacity);
+        author.byId = Arrays.copyOf(author.byId, capacity);
+        language.byId = Arrays.copyOf(language.byId, capacity);
+      }
+      all.add(id);
+      author.set(id, book.getString("author"));
+      language.set(id, book.getString("language"));
+      String year = SearchAPI.extractYear(book.getString("release_date"));
+      setYear(id, "unknown".equals(year) ? 0 : Integer.parseInt(year));
+    }
+
+    private void setYear(int id, int year) {
+      int old = years[id];
+      if (old == year) {
+        return;
+      }
+      if (old != 0) {
+        decades.get(Math.floorDiv(old, 10)).remove(id);
+      }
+      if (year != 0) {
+        decades.computeIfAbsent(Math.floorDiv(year, 10), d -> new CompressedBitmap()).add(id);
+      }
+      years[id] = year;
+    }
+
+    /* Books with a year in [lo, hi]. */
+    CompressedBitmap yearRange(int lo, int hi) {
+      CompressedBitmap out = new CompressedBitmap();
+      for (Map.Entry<Integer, CompressedBitmap> decade
+          : decades.subMap(Math.floorDiv(lo, 10), true, Math.floorDiv(hi, 10), true).entrySet()) {
+        int first = decade.getKey() * 10;
+        if (first >= lo && first + 9 <= hi) {
+          out = CompressedBitmap.or(out, decade.getValue());
+          continue;
+        }
+        for (int id : decade.getValue().toArray()) {
+          if (years[id] >= lo && years[id] <= hi) {
+            out.add(id);
+          }
+        }
+      }
+      return out;
+    }
+  }
+
+  // ---------- queries ----------
+
+  /*
+   * Sorted ids of the books among candidates (all books if null) matching every
+   * clause. Author and language match case-insensitively anywhere in the value; year
+   * is a year (1851) or an inclusive range (1850..1859, 1850.., ..1859).
+   */
+  public int[] filter(List<BooleanQuery.Field> fields, int[] candidates) {
+    lock.readLock().lock();
+    try {
+      State s = state;
+      CompressedBitmap result;
+      if (candidates == null) {
+        result = s.all;
+      } else {
+        result = new CompressedBitmap();
+        for (int id : candidates) {
+          result.add(id);
+        }
+        result = CompressedBitmap.and(result, s.all);
+      }
+      for (BooleanQuery.Field field : fields) {
+        if (result.isEmpty()) {
+          break;
+        }
+        CompressedBitmap matching = switch (field.name()) {
+          case "author" -> s.author.matching(field.value());
+          case "language" -> s.language.matching(field.value());
+          case "year" -> {
+            int[] range = parseYearRange(field.value());
+            if (range == null) {
+              System.err.println("Invalid year format: " + field.value());
+              yield null;
+            }
+            yield s.yearRange(range[0], range[1]);
+          }
+          default -> {
+            System.err.println("Unknown filter ignored: " + field.name());
+            yield null;
+          }
+        };
+        if (matching != null) {
+          result = CompressedBitmap.and(result, matching);
+        }
+      }
+      return result.toArray();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /* [lo, hi] of "1851", "1850..1859", "1850.." or "..1859"; null if malformed. */
+  public static int[] parseYearRange(String spec) {
+    try {
+      int dots = spec.indexOf("..");
+      if (dots < 0) {
+        int year = Integer.parseInt(spec.trim());
+        return new int[] { year, year };
+      }
+      String lo = spec.substring(0, dots).trim();
+      String hi = spec.substring(dots + 2).trim();
+      if (lo.isEmpty() && hi.isEmpty()) {
+        return null;
+      }
+      return new int[] {
+          lo.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(lo),
+          hi.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(hi) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // ---------- loading ----------
+
+  public void start() {
+    Thread refresher = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          if (state == null || System.currentTimeMillis() - loadedAt >= reloadMs) {
+            load();
+          } else {
+            refresh();
+          }
+          Thread.sleep(refreshMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Exception e) {
+          System.err.println("Metadata refresh failed: " + e.getMessage());
+          try {
+            Thread.sleep(refreshMs);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }, "metadata-refresher");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /* Builds the columns from all books and swaps them in. */
+  private void load() {
+    long start = System.currentTimeMillis();
+    books.createIndex(Indexes.ascending("version"));
+    State fresh = new State();
+    long maxVersion = 0;
+    try (MongoCursor<Document> cursor = books.find().projection(PROJECTION).iterator()) {
+      while (cursor.hasNext()) {
+        Document book = cursor.next();
+        fresh.apply(book);
+        maxVersion = Math.max(maxVersion, version(book));
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      state = fresh;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    seenVersion = maxVersion;
+    rereadFrom = maxVersion;
+    loadedAt = System.currentTimeMillis();
+    lastRefresh = loadedAt;
+    System.out.printf("Metadata store loaded %d books in %d ms%n", fresh.all.cardinality(), loadedAt - start);
+  }
+
+  /* Applies the books written since the previous round (and during it). */
+  private void refresh() {
+    List<Document> changed = books.find(Filters.gt("version", rereadFrom))
+        .projection(PROJECTION)
+        .into(new ArrayList<>());
+    long maxVersion = seenVersion;
+    if (!changed.isEmpty()) {
+      lock.writeLock().lock();
+      try {
+        for (Document book : changed) {
+          state.apply(book);
+          maxVersion = Math.max(maxVersion, version(book));
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    rereadFrom = seenVersion;
+    seenVersion = maxVersion;
+    lastRefresh = System.currentTimeMillis();
+  }
+
+  private static long version(Document book) {
+    Object v = book.get("version");
+    return v instanceof Number n ? n.longValue() : 0;
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    lock.readLock().lock();
+    try {
+      State s = state;
+      m.put("ready", s != null);
+      if (s != null) {
+        m.put("books", s.all.cardinality());
+        m.put("authors", s.author.values.size());
+        m.put("languages", s.language.values.size());
+        m.put("decades", s.decades.size());
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    m.put("version", seenVersion);
+    m.put("last_refresh", lastRefresh);
+    return m;
+  }
+}
@@ -0,0 +1,278 @@
+package bigdatastage2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search query with phrases and proximity:
+ *
+ * white whale          both terms anywhere in the book
+ * "white whale"        the terms next to each other, in this order
+ * ahab NEAR/5 whale    the operands at most 5 positions apart, in either order
+ *                      (an operand is a word or a quoted phrase; if one side
+ *                      analyzes to nothing, e.g. a stopword, the constraint is dropped)
+ *
+ * All operands must match. Candidates come from the doc-level intersection of all
+ * terms; matches() then checks the positional constraints of one candidate with
+ * merges over its sorted position lists.
+ */
+public class PositionalQuery {
+
+  /* Terms at fixed offsets from the start of the phrase; a bare word is a one-term phrase. */
+  public static final class Phrase {
+    final String[] terms;
+    final int[] offsets;
+
+    Phrase(String[] terms, int[] offsets) {
+      this.terms = terms;
+      this.offsets = offsets;
+    }
+
+    int span() {
+      return offsets[offsets.length - 1] + 1;
+    }
+  }
+
+  private record Near(int left, int right, int distance) {
+  }
+
+  private static final Pattern NEAR_OPERATOR = Pattern.compile("NEAR/(\\d{1,9})");
+
+  private final List<Phrase> operands = new ArrayList<>();
+  private final List<Near> near = new ArrayList<>();
+  private final Analyzer analyzer;
+
+  private PositionalQuery(Analyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
+  public static PositionalQuery parse(String query, Analyzer analyzer) {
+    PositionalQuery q = new PositionalQuery(analyzer);
+    Tokenizer tokenizer = new Tokenizer(16);
+    int pendingNear = -1;
+    // the previous token left no operand (a stopword), so a NEAR after it has no left side
+    boolean lastEmpty = true;
+    int i = 0;
+    int n = query.length();
+    while (i < n) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      int end;
+      List<Phrase> parsed;
+      if (c == '"') {
+        end = query.indexOf('"', i + 1);
+        if (end < 0) {
+          end = n;
+        }
+        Phrase phrase = phrase(query.substring(i + 1, end), analyzer, tokenizer);
+        parsed = phrase == null ? List.of() : List.of(phrase);
+        end++;
+      } else {
+        end = i;
+        while (end < n && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"') {
+          end++;
+        }
+        String word = query.substring(i, end);
+        Matcher operator = NEAR_OPERATOR.matcher(word);
+        if (operator.matches()) {
+          // with an empty side the operands are just ANDed
+          pendingNear = lastEmpty ? -1 : Integer.parseInt(operator.group(1));
+          i = end;
+          continue;
+        }
+        parsed = words(word, analyzer, tokenizer);
+      }
+      if (!parsed.isEmpty()) {
+        if (pendingNear >= 0) {
+          q.near.add(new Near(q.operands.size() - 1, q.operands.size(), pendingNear));
+        }
+        q.operands.addAll(parsed);
+      }
+      pendingNear = -1;
+      lastEmpty = parsed.isEmpty();
+      i = end;
+    }
+    return q;
+  }
+
+  /* Analyzed phrase; offsets keep the gaps of dropped stopwords. Null if nothing is left. */
+  private static Phrase phrase(String text, Analyzer analyzer, Tokenizer tokenizer) {
+    Map<String, IntList> positions = analyzer.analyzePositions(text, tokenizer);
+    List<long[]> byPosition = new ArrayList<>();
+    List<String> terms = new ArrayList<>(positions.keySet());
+    for (int t = 0; t < terms.size(); t++) {
+      IntList p = positions.get(terms.get(t));
+      for (int k = 0; k < p.size(); k++) {
+        byPosition.add(new long[] { p.get(k), t });
+      }
+    }
+    if (byPosition.isEmpty()) {
+      return null;
+    }
+    byPosition.sort((a, b) -> Long.compare(a[0], b[0]));
+    String[] phraseTerms = new String[byPosition.size()];
+    int[] offsets = new int[byPosition.size()];
+    long first = byPosition.get(0)[0];
+    for (int k = 0; k < phraseTerms.length; k++) {
+      phraseTerms[k] = terms.get((int) byPosition.get(k)[1]);
+      offsets[k] = (int) (byPosition.get(k)[0] - first);
+    }
+    return new Phrase(phraseTerms, offsets);
+  }
+
+  private static List<Phrase> words(String text, Analyzer analyzer, Tokenizer tokenizer) {
+    List<Phrase> words = new ArrayList<>();
+    for (String term : analyzer.analyze(text, tokenizer)) {
+      words.add(new Phrase(new String[] { term }, new int[] { 0 }));
+    }
+    return words;
+  }
+
+  // ---------- accessors ----------
+
+  /* The analyzer the terms came from; book text checked against them must use it too. */
+  public Analyzer analyzer() {
+    return analyzer;
+  }
+
+  /* Every distinct term of the query, for the doc-level intersection. */
+  public List<String> terms() {
+    Set<String> terms = new LinkedHashSet<>();
+    for (Phrase p : operands) {
+      terms.addAll(Arrays.asList(p.terms));
+    }
+    return new ArrayList<>(terms);
+  }
+
+  /* True if some candidates may fail the positional check. */
+  public boolean positional() {
+    if (!near.isEmpty()) {
+      return true;
+    }
+    for (Phrase p : operands) {
+      if (p.terms.length > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* Terms whose positions matches() needs. */
+  public List<String> positionalTerms() {
+    Set<String> terms = new LinkedHashSet<>();
+    for (int i = 0; i < operands.size(); i++) {
+      if (operands.get(i).terms.length > 1 || inNear(i)) {
+        terms.addAll(Arrays.asList(operands.get(i).terms));
+      }
+    }
+    return new ArrayList<>(terms);
+  }
+
+  private boolean inNear(int operand) {
+    for (Near c : near) {
+      if (c.left == operand || c.right == operand) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // ---------- positional evaluation ----------
+
+  /* Checks one candidate book, given the positions of positionalTerms() in it. */
+  public boolean matches(Map<String, int[]> positions) {
+    int[][] starts = new int[operands.size()][];
+    for (int i = 0; i < operands.size(); i++) {
+      Phrase p = operands.get(i);
+      if (p.terms.length > 1 || inNear(i)) {
+        starts[i] = phraseStarts(p, positions);
+        if (starts[i].length == 0) {
+          return false;
+        }
+      }
+    }
+    for (Near c : near) {
+      if (!within(starts[c.left], operands.get(c.left).span(), starts[c.right],
+          operands.get(c.right).span(), c.distance)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Start positions of the phrase: a merge driven by the rarest term, where every
+   * other term's list is advanced monotonically to the position its offset requires.
+   */
+  static int[] phraseStarts(Phrase phrase, Map<String, int[]> positions) {
+    int k = phrase.terms.length;
+    int[][] lists = new int[k][];
+    int driver = 0;
+    for (int t = 0; t < k; t++) {
+      lists[t] = positions.get(phrase.terms[t]);
+      if (lists[t] == null) {
+        return new int[0];
+      }
+      if (lists[t].length < lists[driver].length) {
+        driver = t;
+      }
+    }
+    if (k == 1) {
+      return lists[0];
+    }
+    int[] cursor = new int[k];
+    IntList starts = new IntList();
+    candidates:
+    for (int pos : lists[driver]) {
+      int start = pos - phrase.offsets[driver];
+      if (start < 0) {
+        continue;
+      }
+      for (int t = 0; t < k; t++) {
+        if (t == driver) {
+          continue;
+        }
+        int want = start + phrase.offsets[t];
+        int[] list = lists[t];
+        while (cursor[t] < list.length && list[cursor[t]] < want) {
+          cursor[t]++;
+        }
+        if (cursor[t] == list.length) {
+          break candidates;
+        }
+        if (list[cursor[t]] != want) {
+          continue candidates;
+        }
+      }
+      starts.add(start);
+    }
+    return starts.toArray();
+  }
+
+  /* True if some occurrence of a and some of b are at most distance positions apart. */
+  static boolean within(int[] a, int spanA, int[] b, int spanB, int distance) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      int gap = a[i] <= b[j] ? b[j] - (a[i] + spanA - 1) : a[i] - (b[j] + spanB - 1);
+      if (gap <= distance) {
+        return true;
+      }
+      if (a[i] <= b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,136 @@
+package bigdatastage2;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block format for posting lists.
+ *
+ * A term's sorted postings are cut into blocks of at most BLOCK_SIZE ids. Each
+ * block is one document {term, block, min, max, count, data} where data holds the
+ * ids as gaps (delta to the previous id) in LEB128 varint encoding. Blocks written
+ * by incremental indexing are "tail" blocks (block = -1) that a background job
+ * later compacts into numbered, full blocks.
+ */
+public class PostingBlocks {
+
+  public static final int TAIL = -1;
+  public static final int BLOCK_SIZE = Config.getInt("INDEX_BLOCK_SIZE", 1024);
+
+  // ---------- varint / delta coding ----------
+
+  /* Encodes sorted ids[from, to) as varint gaps. */
+  public static byte[] encode(int[] ids, int from, int to) {
+    byte[] out = new byte[(to - from) * 5];
+    int pos = 0;
+    int prev = 0;
+    for (int i = from; i < to; i++) {
+      int gap = ids[i] - prev;
+      prev = ids[i];
+      while ((gap & ~0x7F) != 0) {
+        out[pos++] = (byte) ((gap & 0x7F) | 0x80);
+        gap >>>= 7;
+      }
+      out[pos++] = (byte) gap;
+    }
+    return Arrays.copyOf(out, pos);
+  }
+
+  /* Decodes count ids into dst starting at offset; returns the new offset. */
+  public static int decode(byte[] data, int count, int[] dst, int offset) {
+    int pos = 0;
+    int prev = 0;
+    for (int i = 0; i < count; i++) {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      prev += value;
+      dst[offset++] = prev;
+    }
+    return offset;
+  }
+
+  /* Decodes a complete varint gap sequence; every value ends in a byte without the high bit. */
+  public static int[] decodeAll(byte[] data) {
+    int count = 0;
+    for (byte b : data) {
+      if (b >= 0) {
+        count++;
+      }
+    }
+    int[] values = new int[count];
+    decode(data, count, values, 0);
+    return values;
+  }
+
+  // ---------- block documents ----------
+
+  public static Document blockDocument(String term, int blockNo, int[] ids, int from, int to) {
+    return new Document("term", term)
+        .append("block", blockNo)
+        .append("min", ids[from])
+        .append("max", ids[to - 1])
+        .append("count", to - from)
+        .append("data", new Binary(encode(ids, from, to)));
+  }
+
+  /* Cuts sorted postings into numbered full blocks. */
+  public static List<Document> toBlocks(String term, int[] sorted) {
+    List<Document> blocks = new ArrayList<>((sorted.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    for (int from = 0, n = 0; from < sorted.length; from += BLOCK_SIZE, n++) {
+      blocks.add(blockDocument(term, n, sorted, from, Math.min(sorted.length, from + BLOCK_SIZE)));
+    }
+    return blocks;
+  }
+
+  /* The block re-encoded without one id; null if that was its only id, the block itself if it lacks the id. */
+  public static Document withoutId(Document block, int id) {
+    int[] ids = new int[block.getInteger("count")];
+    decode(block.get("data", Binary.class).getData(), ids.length, ids, 0);
+    int at = Arrays.binarySearch(ids, id);
+    if (at < 0) {
+      return block;
+    }
+    if (ids.length == 1) {
+      return null;
+    }
+    int[] rest = new int[ids.length - 1];
+    System.arraycopy(ids, 0, rest, 0, at);
+    System.arraycopy(ids, at + 1, rest, at, rest.length - at);
+    return blockDocument(block.getString("term"), block.getInteger("block"), rest, 0, rest.length);
+  }
+
+  /* Merges the ids of any number of block documents into one sorted, duplicate-free array. */
+  public static int[] decodeAll(List<Document> blocks) {
+    int total = 0;
+    for (Document b : blocks) {
+      total += b.getInteger("count");
+    }
+    int[] ids = new int[total];
+    int offset = 0;
+    boolean sorted = true;
+    for (Document b : blocks) {
+      int before = offset;
+      offset = decode(b.get("data", Binary.class).getData(), b.getInteger("count"), ids, offset);
+      if (before > 0 && offset > before && ids[before] <= ids[before - 1]) {
+        sorted = false;
+      }
+    }
+    if (sorted) {
+      return ids;
+    }
+    IntList list = new IntList(0);
+    list.addAll(ids, ids.length);
+    list.sortUnique();
+    return list.toArray();
+  }
+}
@@ -0,0 +1,218 @@
+package bigdatastage2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process cache of posting lists (term -> sorted int[] of book ids), bounded by
+ * an estimate of its heap size in bytes.
+ *
+ * Entries are kept in LRU order, but a new list only replaces the LRU victims it
+ * needs room from if its term has been requested more often recently than each of
+ * them (TinyLFU admission; nothing is evicted for a rejected list): a count-min
+ * sketch counts requests, hits and misses alike, and halves all counts every
+ * 10 x width requests so that old popularity fades. A one-off scan of rare terms
+ * therefore cannot flush the hot terms out.
+ *
+ * Invalidation bumps a stamp; a list read from the index is only cached if no
+ * invalidation happened since the reader took the stamp, so a read that raced
+ * with an index update is never cached.
+ */
+public class PostingCache {
+
+  private static final int ENTRY_OVERHEAD = 120;
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, int[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+  private long bytes = 0;
+  private long stamp = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long rejections = 0;
+  private long invalidations = 0;
+
+  public PostingCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /* The cached postings of the term, or null. Counts the request either way. */
+  public synchronized int[] get(String term) {
+    sketch.increment(term);
+    int[] ids = entries.get(term);
+    if (ids == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return ids;
+  }
+
+  /* Taken before reading postings from the index; see put(). */
+  public synchronized long stamp() {
+    return stamp;
+  }
+
+  /* Caches postings read after stamp() returned readStamp, unless they may be stale or lose admission. */
+  public synchronized void put(String term, int[] ids, long readStamp) {
+    if (readStamp != stamp) {
+      return;
+    }
+    long size = sizeOf(term, ids);
+    if (size > maxBytes / 8) {
+      rejections++;
+      return;
+    }
+    int[] old = entries.get(term);
+    if (old != null) {
+      // already admitted: refresh in place and make room for any growth
+      entries.put(term, ids);
+      bytes += size - sizeOf(term, old);
+      evict(List.of(), term);
+      return;
+    }
+
+    // find the LRU victims that would make room and admit only if the term beats every one
+    int frequency = sketch.frequency(term);
+    List<String> victims = new ArrayList<>();
+    long freed = 0;
+    for (Map.Entry<String, int[]> entry : entries.entrySet()) {
+      if (bytes - freed + size <= maxBytes) {
+        break;
+      }
+      if (frequency <= sketch.frequency(entry.getKey())) {
+        rejections++;
+        return;
+      }
+      victims.add(entry.getKey());
+      freed += sizeOf(entry.getKey(), entry.getValue());
+    }
+    evict(victims, null);
+    entries.put(term, ids);
+    bytes += size;
+  }
+
+  /* Removes the victims, then further LRU entries (except keep) while over budget. */
+  private void evict(List<String> victims, String keep) {
+    for (String victim : victims) {
+      bytes -= sizeOf(victim, entries.remove(victim));
+      evictions++;
+    }
+    Iterator<Map.Entry<String, int[]>> lru = entries.entrySet().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      Map.Entry<String, int[]> entry = lru.next();
+      if (entry.getKey().equals(keep)) {
+        continue;
+      }
+      bytes -= sizeOf(entry.getKey(), entry.getValue());
+      lru.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized void invalidate(Collection<String> terms) {
+    stamp++;
+    invalidations++;
+    for (String term : terms) {
+      int[] old = entries.remove(term);
+      if (old != null) {
+        bytes -= sizeOf(term, old);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    stamp++;
+    invalidations++;
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("entries", entries.size());
+    m.put("bytes", bytes);
+    m.put("max_bytes", maxBytes);
+    m.put("hits", hits);
+    m.put("misses", misses);
+    m.put("hit_rate", hits + misses == 0 ? 0.0 : Math.round(1000.0 * hits / (hits + misses)) / 1000.0);
+    m.put("evictions", evictions);
+    m.put("rejections", rejections);
+    m.put("invalidations", invalidations);
+    return m;
+  }
+
+  private static long sizeOf(String term, int[] ids) {
+    return ENTRY_OVERHEAD + 2L * term.length() + 4L * ids.length;
+  }
+
+  /* Count-min sketch with four rows of 4-bit saturating counters, halved periodically. */
+  private static final class FrequencySketch {
+    private final long[][] rows = new long[4][];
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int width) {
+      for (int r = 0; r < rows.length; r++) {
+        rows[r] = new long[width / 16];
+      }
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    void increment(String term) {
+      int h = spread(term.hashCode());
+      boolean added = false;
+      for (int r = 0; r < rows.length; r++) {
+        int slot = index(h, r);
+        long word = rows[r][slot >>> 4];
+        int shift = (slot & 15) << 2;
+        if (((word >>> shift) & 0xF) < 15) {
+          rows[r][slot >>> 4] = word + (1L << shift);
+          added = true;
+        }
+      }
+      if (added && ++additions == sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(String term) {
+      int h = spread(term.hashCode());
+      int min = 15;
+      for (int r = 0; r < rows.length; r++) {
+        int slot = index(h, r);
+        min = Math.min(min, (int) ((rows[r][slot >>> 4] >>> ((slot & 15) << 2)) & 0xF));
+      }
+      return min;
+    }
+
+    private int index(int h, int row) {
+      int x = h * (0x9E3779B9 + 2 * row + 1);
+      return (x ^ (x >>> 15)) & mask;
+    }
+
+    private static int spread(int h) {
+      h ^= h >>> 16;
+      h *= 0x45d9f3b;
+      return h ^ (h >>> 16);
+    }
+
+    /* Halves every counter. */
+    private void reset() {
+      for (long[] row : rows) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] = (row[i] >>> 1) & 0x7777777777777777L;
+        }
+      }
+      additions /= 2;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package bigdatastage2;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Set operations on sorted, duplicate-free int arrays of book ids, as iterators that
+ * can be nested (AND of ORs of terms ...) without materializing the intermediate sets.
+ *
+ * Every iterator supports advance(target), which skips to the first id >= target. On
+ * arrays it gallops (doubling steps, then a binary search inside the last step), so an
+ * AND led by its rarest child costs about |rare| * log(|common| / |rare|), not |common|.
+ */
+public final class PostingLists {
+
+  private PostingLists() {
+  }
+
+  /* Collects the remaining ids of the iterator. */
+  public static int[] drain(DocIterator it) {
+    IntList ids = new IntList();
+    for (int doc = it.next(); doc != DocIterator.END; doc = it.next()) {
+      ids.add(doc);
+    }
+    return ids.toArray();
+  }
+
+  /* Ids of a that are not in b. */
+  public static int[] difference(int[] a, int[] b) {
+    return drain(new AndNotIterator(new ArrayIterator(a), new ArrayIterator(b)));
+  }
+
+  /* First index >= from whose value is >= target, or list.length. */
+  static int gallop(int[] list, int from, int target) {
+    if (from >= list.length || list[from] >= target) {
+      return from;
+    }
+    int lo = from;
+    int step = 1;
+    int hi = from + 1;
+    while (hi < list.length && list[hi] < target) {
+      lo = hi;
+      step <<= 1;
+      hi = from + step;
+    }
+    hi = Math.min(hi, list.length);
+    // list[lo] < target, and list[hi] >= target or hi == length
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (list[mid] < target) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return hi;
+  }
+
+  // ---------- iterators ----------
+
+  public abstract static class DocIterator {
+    public static final int END = Integer.MAX_VALUE;
+
+    /* Current id; -1 before the first call, END once exhausted. */
+    public abstract int doc();
+
+    public abstract int next();
+
+    /* Moves to the first id >= target, where target > doc(), and returns it. */
+    public abstract int advance(int target);
+
+    /* Upper bound of the number of ids, to lead intersections with the rarest child. */
+    public abstract long cost();
+  }
+
+  public static final class ArrayIterator extends DocIterator {
+    private final int[] ids;
+    private int pos = -1;
+    private int doc = -1;
+
+    public ArrayIterator(int[] ids) {
+      this.ids = ids;
+    }
+
+    public int doc() {
+      return doc;
+    }
+
+    public int next() {
+      pos = Math.min(pos + 1, ids.length);
+      return doc = pos < ids.length ? ids[pos] : END;
+    }
+
+    public int advance(int target) {
+      pos = gallop(ids, Math.min(pos + 1, ids.length), target);
+      return doc = pos < ids.length ? ids[pos] : END;
+    }
+
+    public long cost() {
+      return ids.length;
+    }
+  }
+
+  /* Ids in all children: the rarest child leads, the others are advanced to its ids. */
+  public static final class AndIterator extends DocIterator {
+    private final DocIterator[] its;
+    private int doc = -1;
+
+    public AndIterator(List<DocIterator> children) {
+      its = children.toArray(new DocIterator[0]);
+      Arrays.sort(its, Comparator.comparingLong(DocIterator::cost));
+    }
+
+    public int doc() {
+      return doc;
+    }
+
+    public int next() {
+      return doc = align(its[0].next());
+    }
+
+    public int advance(int target) {
+      return doc = align(its[0].advance(target));
+    }
+
+    private int align(int target) {
+      int i = 1;
+      while (target != END && i < its.length) {
+        DocIterator it = its[i];
+        int d = it.doc() < target ? it.advance(target) : it.doc();
+        if (d == target) {
+          i++;
+        } else if (d == END) {
+          return END;
+        } else {
+          target = its[0].advance(d);
+          i = 1;
+        }
+      }
+      return target;
+    }
+
+    public long cost() {
+      return its[0].cost();
+    }
+  }
+
+  /* Ids in any child. */
+  public static final class OrIterator extends DocIterator {
+    private final DocIterator[] its;
+    private int doc = -1;
+
+    public OrIterator(List<DocIterator> children) {
+      its = children.toArray(new DocIterator[0]);
+    }
+
+    public int doc() {
+      return doc;
+    }
+
+    public int next() {
+      for (DocIterator it : its) {
+        if (it.doc() <= doc) {
+          it.next();
+        }
+      }
+      return doc = min();
+    }
+
+    public int advance(int target) {
+      for (DocIterator it : its) {
+        if (it.doc() < target) {
+          it.advance(target);
+        }
+      }
+      return doc = min();
+    }
+
+    private int min() {
+      int min = END;
+      for (DocIterator it : its) {
+        min = Math.min(min, it.doc());
+      }
+      return min;
+    }
+
+    public long cost() {
+      long cost = 0;
+      for (DocIterator it : its) {
+        cost += it.cost();
+      }
+      return cost;
+    }
+  }
+
+  /* Ids of include that are not in exclude. */
+  public static final class AndNotIterator extends DocIterator {
+    private final DocIterator include;
+    private final DocIterator exclude;
+    private int doc = -1;
+
+    public AndNotIterator(DocIterator include, DocIterator exclude) {
+      this.include = include;
+      this.exclude = exclude;
+    }
+
+    public int doc() {
+      return doc;
+    }
+
+    public int next() {
+      return doc = skipExcluded(include.next());
+    }
+
+    public int advance(int target) {
+      return doc = skipExcluded(include.advance(target));
+    }
+
+    private int skipExcluded(int d) {
+      while (d != END) {
+        int x = exclude.doc() < d ? exclude.advance(d) : exclude.doc();
+        if (x != d) {
+          return d;
+        }
+        d = include.next();
+      }
+      return END;
+    }
+
+    public long cost() {
+      return include.cost();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package bigdatastage2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of /search results as serialized JSON, keyed on the canonical form of the
+ * request (BooleanQuery.canonical()), so that "Whale  WHITE" and "white AND whale
+ * whale" with the same filters share one entry.
+ *
+ * Entries expire after a TTL and belong to an index epoch: advanceEpoch() is called
+ * whenever the index reports a change and makes every older entry unusable. A result
+ * computed while the epoch moved is not cached (see put()). Bounded by bytes, LRU.
+ */
+public class QueryResultCache {
+
+  private static final int ENTRY_OVERHEAD = 160;
+
+  /* The "results" array as JSON and its length. */
+  public record Entry(byte[] json, int count, long epoch, long expiresAt) {
+  }
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes = 0;
+  private long epoch = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long expired = 0;
+  private long evictions = 0;
+
+  public QueryResultCache(long maxBytes, long ttlMillis) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /* Taken before computing a result; see put(). */
+  public synchronized long epoch() {
+    return epoch;
+  }
+
+  public synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (entry.epoch != epoch || entry.expiresAt < System.currentTimeMillis()) {
+      remove(key);
+      expired++;
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry;
+  }
+
+  /* Caches a result computed after epoch() returned readEpoch, unless the index changed meanwhile. */
+  public synchronized void put(String key, byte[] json, int count, long readEpoch) {
+    if (readEpoch != epoch) {
+      return;
+    }
+    long size = sizeOf(key, json);
+    if (size > maxBytes / 8) {
+      return;
+    }
+    remove(key);
+    Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+    while (bytes + size > maxBytes && lru.hasNext()) {
+      Map.Entry<String, Entry> victim = lru.next();
+      bytes -= sizeOf(victim.getKey(), victim.getValue().json);
+      lru.remove();
+      evictions++;
+    }
+    entries.put(key, new Entry(json, count, epoch, System.currentTimeMillis() + ttlMillis));
+    bytes += size;
+  }
+
+  /* The index changed: no cached result may be served any more. */
+  public synchronized void advanceEpoch() {
+    epoch++;
+    entries.clear();
+    bytes = 0;
+  }
+
+  private void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      bytes -= sizeOf(key, old.json);
+    }
+  }
+
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("entries", entries.size());
+    m.put("bytes", bytes);
+    m.put("max_bytes", maxBytes);
+    m.put("ttl_ms", ttlMillis);
+    m.put("epoch", epoch);
+    m.put("hits", hits);
+    m.put("misses", misses);
+    m.put("hit_rate", hits + misses == 0 ? 0.0 : Math.round(1000.0 * hits / (hits + misses)) / 1000.0);
+    m.put("expired", expired);
+    m.put("evictions", evictions);
+    return m;
+  }
+
+  private static long sizeOf(String key, byte[] json) {
+    return ENTRY_OVERHEAD + 2L * key.length() + json.length;
+  }
+}
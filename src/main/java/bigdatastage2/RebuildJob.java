@@ -0,0 +1,246 @@
+package bigdatastage2;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State and progress of one background index rebuild.
+ *
+ * A job builds the index into its own namespace and is persisted as
+ * control/jobs/<id>.json after every written batch. Books are read in ascending id
+ * order, so the checkpoint is a single id: every book up to it has been written.
+ * Streaming jobs resume after the checkpoint; SPIMI jobs start over, since their
+ * runs are temporary. Books changed while a streaming job is stopped are recorded
+ * with it (missed_changes) and re-applied to its shadow when it resumes. Reshard
+ * jobs copy the live index term by term into a namespace with a different shard
+ * count and also start over; their progress counts term documents instead of books.
+ */
+public class RebuildJob {
+
+  public enum State { RUNNING, CANCELLED, FAILED, INTERRUPTED, COMPLETED }
+
+  private static final Gson gson = new Gson();
+
+  final String id;
+  final String mode;
+  final String namespace;
+  final int shards;
+  final long createdAt;
+  final List<String> replacedSegments;
+
+  volatile State state = State.RUNNING;
+  volatile String error;
+  volatile long booksTotal;
+  volatile boolean cancelRequested = false;
+  volatile RebuildPipeline pipeline;
+  private final AtomicLong booksDone = new AtomicLong();
+  private volatile long runStartedAt;
+  private volatile long doneAtRunStart;
+
+  // ids in submission order and the written ones not yet covered by the checkpoint
+  private final IntList submitted = new IntList();
+  private int watermark = 0;
+  private final CompressedBitmap written = new CompressedBitmap();
+  private volatile int checkpointId = -1;
+  // books changed while the job had no shadow store: id -> deleted, the last change wins
+  private final Map<Integer, Boolean> missedChanges = new LinkedHashMap<>();
+
+  RebuildJob(String id, String mode, int shards, List<String> replacedSegments) {
+    this.id = id;
+    this.mode = mode;
+    this.namespace = InvertedIndexStore.namespaceFor(id);
+    this.shards = shards;
+    this.createdAt = System.currentTimeMillis();
+    this.replacedSegments = replacedSegments;
+  }
+
+  private RebuildJob(Map<String, Object> saved) {
+    this.id = (String) saved.get("id");
+    this.mode = (String) saved.get("mode");
+    this.namespace = (String) saved.get("namespace");
+    Number savedShards = (Number) saved.get("shards");
+    this.shards = savedShards != null ? savedShards.intValue() : 0;
+    this.createdAt = ((Number) saved.get("created_at")).longValue();
+    @SuppressWarnings("unchecked")
+    List<String> replaced = (List<String>) saved.get("replaced_segments");
+    this.replacedSegments = replaced != null ? replaced : new ArrayList<>();
+    this.state = State.valueOf((String) saved.get("state"));
+    this.error = (String) saved.get("error");
+    this.booksTotal = ((Number) saved.get("books_total")).longValue();
+    this.booksDone.set(((Number) saved.get("books_done")).longValue());
+    this.checkpointId = ((Number) saved.get("checkpoint_id")).intValue();
+    @SuppressWarnings("unchecked")
+    List<Number> missed = (List<Number>) saved.get("missed_changes");
+    if (missed != null) {
+      for (Number change : missed) {
+        int c = change.intValue();
+        missedChanges.put(c < 0 ? ~c : c, c < 0);
+      }
+    }
+  }
+
+  boolean resumable() {
+    return state == State.CANCELLED || state == State.FAILED || state == State.INTERRUPTED;
+  }
+
+  int checkpointId() {
+    return checkpointId;
+  }
+
+  /* True for a streaming job that has not completed: its shadow is kept for a resume. */
+  boolean keepsShadow() {
+    return "stream".equals(mode) && state != State.COMPLETED;
+  }
+
+  // ---------- missed changes ----------
+
+  synchronized void missed(int bookId, boolean deleted) {
+    missedChanges.remove(bookId);
+    missedChanges.put(bookId, deleted);
+  }
+
+  synchronized Map<Integer, Boolean> missedChanges() {
+    return new LinkedHashMap<>(missedChanges);
+  }
+
+  /* Forgets replayed changes, unless the book changed again since. */
+  synchronized void replayed(Map<Integer, Boolean> changes) {
+    for (Map.Entry<Integer, Boolean> e : changes.entrySet()) {
+      missedChanges.remove(e.getKey(), e.getValue());
+    }
+  }
+
+  InvertedIndexStore.Layout layout() {
+    return new InvertedIndexStore.Layout(namespace, shards);
+  }
+
+  // ---------- progress ----------
+
+  /* Called when a (re)run starts; resetProgress for jobs that cannot resume. */
+  synchronized void startRun(long total, boolean resetProgress) {
+    if (resetProgress) {
+      booksDone.set(0);
+      checkpointId = -1;
+    }
+    submitted.clear();
+    watermark = 0;
+    written.clear();
+    booksTotal = total;
+    state = State.RUNNING;
+    error = null;
+    cancelRequested = false;
+    runStartedAt = System.currentTimeMillis();
+    doneAtRunStart = booksDone.get();
+  }
+
+  /* Records a book handed to the pipeline; ids must arrive in ascending order. */
+  synchronized void submitted(int bookId) {
+    submitted.add(bookId);
+  }
+
+  /*
+   * Records written books and advances the checkpoint over the gap-free prefix of
+   * submitted ids. Returns true if the checkpoint moved.
+   */
+  synchronized boolean written(int[] bookIds) {
+    booksDone.addAndGet(bookIds.length);
+    for (int id : bookIds) {
+      written.add(id);
+    }
+    int before = checkpointId;
+    while (watermark < submitted.size() && written.remove(submitted.get(watermark))) {
+      checkpointId = submitted.get(watermark);
+      watermark++;
+    }
+    return checkpointId != before;
+  }
+
+  /* For jobs without per-batch writes (SPIMI scan phase, reshard copy). */
+  void booksScanned(int n) {
+    booksDone.addAndGet(n);
+  }
+
+  Map<String, Object> progress() {
+    long done = booksDone.get();
+    double elapsed = Math.max(1, System.currentTimeMillis() - runStartedAt) / 1000.0;
+    double rate = state == State.RUNNING ? (done - doneAtRunStart) / elapsed : 0;
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("job_id", id);
+    m.put("mode", mode);
+    m.put("state", state.name().toLowerCase());
+    m.put("namespace", namespace);
+    m.put("shards", shards);
+    m.put("unit", "reshard".equals(mode) ? "term_documents" : "books");
+    m.put("books_done", done);
+    m.put("books_total", booksTotal);
+    m.put("books_per_second", Math.round(rate * 10) / 10.0);
+    m.put("eta_seconds", rate > 0 ? Math.max(0, Math.round((booksTotal - done) / rate)) : null);
+    m.put("checkpoint_id", checkpointId);
+    if (error != null) {
+      m.put("error", error);
+    }
+    return m;
+  }
+
+  // ---------- persistence ----------
+
+  synchronized void save(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("id", id);
+    m.put("mode", mode);
+    m.put("namespace", namespace);
+    m.put("shards", shards);
+    m.put("created_at", createdAt);
+    m.put("state", state.name());
+    m.put("error", error);
+    m.put("books_total", booksTotal);
+    m.put("books_done", booksDone.get());
+    m.put("checkpoint_id", checkpointId);
+    m.put("replaced_segments", replacedSegments);
+    List<Integer> missed = new ArrayList<>(missedChanges.size());
+    for (Map.Entry<Integer, Boolean> e : missedChanges.entrySet()) {
+      missed.add(e.getValue() ? ~e.getKey() : e.getKey());
+    }
+    m.put("missed_changes", missed);
+    Path file = dir.resolve(id + ".json");
+    Path tmp = dir.resolve(id + ".json.tmp");
+    Files.writeString(tmp, gson.toJson(m), StandardCharsets.UTF_8);
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /* Loads saved jobs; jobs that were running when the process stopped become INTERRUPTED. */
+  static List<RebuildJob> loadAll(Path dir) {
+    List<RebuildJob> jobs = new ArrayList<>();
+    if (!Files.isDirectory(dir)) {
+      return jobs;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.json")) {
+      for (Path f : files) {
+        Map<String, Object> saved = gson.fromJson(Files.readString(f, StandardCharsets.UTF_8),
+            new TypeToken<Map<String, Object>>() {
+            }.getType());
+        RebuildJob job = new RebuildJob(saved);
+        if (job.state == State.RUNNING) {
+          job.state = State.INTERRUPTED;
+        }
+        jobs.add(job);
+      }
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Could not load rebuild jobs: " + e.getMessage());
+    }
+    return jobs;
+  }
+}
@@ -0,0 +1,206 @@
+package bigdatastage2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming pipeline for full index rebuilds:
+ *
+ * reader (caller) -> bounded book queue -> N analyzer workers -> bounded term queue
+ * -> one writer that merges the terms of many books into term -> ids batches
+ *
+ * Both queues are bounded, so a slow stage blocks the one before it and at most
+ * queue + worker count books are in memory at once, regardless of corpus size.
+ * The writer flushes a batch every REBUILD_WRITE_BOOKS books or REBUILD_WRITE_POSTINGS
+ * postings, so every term is written once per batch instead of once per book.
+ */
+public class RebuildPipeline {
+
+  /* Extracts the unique index terms of one book. */
+  @FunctionalInterface
+  public interface TermExtractor {
+    List<String> terms(int bookId, String language, String text) throws Exception;
+  }
+
+  /* Writes the postings of one batch; bookIds are the books completely contained in it. */
+  @FunctionalInterface
+  public interface BatchWriter {
+    void write(Map<String, IntList> postings, int[] bookIds) throws Exception;
+  }
+
+  private static final int WRITE_BOOKS = Config.getInt("REBUILD_WRITE_BOOKS", 200);
+  private static final long WRITE_POSTINGS = Config.getLong("REBUILD_WRITE_POSTINGS", 2_000_000);
+
+  private record Book(int id, String language, String text) {
+  }
+
+  private record Terms(int id, List<String> terms) {
+  }
+
+  private static final Book END_OF_BOOKS = new Book(-1, null, null);
+  private static final Terms END_OF_TERMS = new Terms(-1, null);
+
+  private final BlockingQueue<Book> books;
+  private final BlockingQueue<Terms> analyzed;
+  private final TermExtractor extractor;
+  private final BatchWriter writer;
+  private final List<Thread> workers = new ArrayList<>();
+  private final Thread writerThread;
+
+  private final AtomicLong booksRead = new AtomicLong();
+  private final AtomicLong booksWritten = new AtomicLong();
+  private final AtomicLong postingsWritten = new AtomicLong();
+  private volatile Throwable failure;
+  private volatile boolean cancelled = false;
+
+  public RebuildPipeline(int workerCount, TermExtractor extractor, BatchWriter writer) {
+    this.books = new ArrayBlockingQueue<>(Config.getInt("REBUILD_QUEUE", workerCount * 4));
+    this.analyzed = new ArrayBlockingQueue<>(Config.getInt("REBUILD_QUEUE", workerCount * 4));
+    this.extractor = extractor;
+    this.writer = writer;
+    for (int i = 0; i < workerCount; i++) {
+      Thread t = new Thread(this::analyze, "rebuild-analyzer-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+      t.start();
+    }
+    writerThread = new Thread(this::write, "rebuild-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  // ---------- reader side ----------
+
+  /* Hands one book to the analyzers; blocks while the queue is full. */
+  public void submit(int bookId, String language, String text) throws Exception {
+    put(books, new Book(bookId, language, text));
+    booksRead.incrementAndGet();
+  }
+
+  /* Waits until every submitted book is written. */
+  public void finish() throws Exception {
+    for (int i = 0; i < workers.size(); i++) {
+      put(books, END_OF_BOOKS);
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    put(analyzed, END_OF_TERMS);
+    writerThread.join();
+    checkFailure();
+  }
+
+  /* Blocking put that gives up once a stage failed or the rebuild was cancelled. */
+  private <T> void put(BlockingQueue<T> queue, T item) throws Exception {
+    checkFailure();
+    while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+      checkFailure();
+    }
+  }
+
+  /* Stops all stages; submit() and finish() then throw. */
+  public void cancel() {
+    cancelled = true;
+    for (Thread t : workers) {
+      t.interrupt();
+    }
+    writerThread.interrupt();
+  }
+
+  public long booksRead() {
+    return booksRead.get();
+  }
+
+  public long booksWritten() {
+    return booksWritten.get();
+  }
+
+  public long postingsWritten() {
+    return postingsWritten.get();
+  }
+
+  private void checkFailure() throws Exception {
+    if (cancelled) {
+      throw new InterruptedException("Rebuild cancelled");
+    }
+    if (failure != null) {
+      throw new Exception("Rebuild pipeline failed: " + failure.getMessage(), failure);
+    }
+  }
+
+  // ---------- stages ----------
+
+  private void analyze() {
+    try {
+      while (true) {
+        Book book = books.take();
+        if (book == END_OF_BOOKS) {
+          return;
+        }
+        analyzed.put(new Terms(book.id, extractor.terms(book.id, book.language, book.text)));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      fail(t);
+    }
+  }
+
+  private void write() {
+    Map<String, IntList> batch = new HashMap<>();
+    IntList batchBooks = new IntList();
+    long batchPostings = 0;
+    try {
+      while (true) {
+        Terms book = analyzed.take();
+        if (book == END_OF_TERMS) {
+          break;
+        }
+        for (String term : book.terms) {
+          batch.computeIfAbsent(term, k -> new IntList(4)).add(book.id);
+        }
+        batchBooks.add(book.id);
+        batchPostings += book.terms.size();
+        if (batchBooks.size() >= WRITE_BOOKS || batchPostings >= WRITE_POSTINGS) {
+          flush(batch, batchBooks, batchPostings);
+          batch = new HashMap<>();
+          batchBooks.clear();
+          batchPostings = 0;
+        }
+      }
+      flush(batch, batchBooks, batchPostings);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      fail(t);
+    }
+  }
+
+  private void flush(Map<String, IntList> batch, IntList batchBooks, long batchPostings) throws Exception {
+    if (batchBooks.isEmpty()) {
+      return;
+    }
+    writer.write(batch, batchBooks.toArray());
+    booksWritten.addAndGet(batchBooks.size());
+    postingsWritten.addAndGet(batchPostings);
+  }
+
+  /* Records the first failure and unblocks the other stages. */
+  private void fail(Throwable t) {
+    if (failure == null) {
+      failure = t;
+    }
+    books.clear();
+    analyzed.clear();
+    for (Thread w : workers) {
+      w.interrupt();
+    }
+    writerThread.interrupt();
+  }
+}
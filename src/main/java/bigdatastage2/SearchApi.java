@@ -3,21 +3,30 @@ package bigdatastage2;
 import com.google.gson.Gson;
 import com.mongodb.client.*;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class SearchAPI {
   private static final Gson gson = new Gson();
   private static MongoCollection<Document> booksCollection;
   private static MongoDatabase indexDb;
+  private static InvertedIndexStore indexStore;
+  private static SegmentIndex segmentIndex;
+  private static Datalake datalake;
+  private static PostingCache postingCache;
+  private static QueryResultCache resultCache;
+  private static MetadataStore metadataStore;
+  private static IndexChanges indexChanges;
   private static MongoDatabase[] databases;
   private static final int PORT = 7003;
 
@@ -32,6 +41,35 @@ public class SearchAPI {
 
     booksCollection = databases[0].getCollection("books");
     indexDb = databases[1];
+    indexStore = new InvertedIndexStore(indexDb);
+    if (SegmentIndex.enabled()) {
+      segmentIndex = new SegmentIndex(SegmentIndex.directory());
+      System.out.println("Reading postings from index segments in " + SegmentIndex.directory());
+    }
+    if (MetadataStore.enabled()) {
+      metadataStore = new MetadataStore(booksCollection);
+      metadataStore.start();
+    }
+    long cacheMb = Config.getLong("POSTING_CACHE_MB", 64);
+    if (cacheMb > 0) {
+      postingCache = new PostingCache(cacheMb * 1024 * 1024);
+    }
+    long resultCacheMb = Config.getLong("RESULT_CACHE_MB", 32);
+    if (resultCacheMb > 0) {
+      resultCache = new QueryResultCache(resultCacheMb * 1024 * 1024,
+          Config.getLong("RESULT_CACHE_TTL_S", 60) * 1000);
+    }
+    if (postingCache != null || resultCache != null) {
+      indexChanges = new IndexChanges(indexDb);
+      startCacheInvalidation();
+    }
+    if (Datalake.enabled()) {
+      try {
+        datalake = Datalake.open();
+      } catch (IOException e) {
+        System.err.println("Could not open the datalake: " + e.getMessage());
+      }
+    }
 
     // Create Javalin server
     Javalin app = Javalin.create(config -> {
@@ -48,15 +86,26 @@ public class SearchAPI {
 
     // Health check status
     app.get("/status", ctx -> {
-      Map<String, Object> status = Map.of(
-          "service", "search-service",
-          "status", "running",
-          "database", "connected");
+      Map<String, Object> status = new LinkedHashMap<>();
+      status.put("service", "search-service");
+      status.put("status", "running");
+      status.put("database", "connected");
+      if (postingCache != null) {
+        status.put("posting_cache", postingCache.stats());
+      }
+      if (resultCache != null) {
+        status.put("result_cache", resultCache.stats());
+      }
+      if (metadataStore != null) {
+        status.put("metadata_store", metadataStore.stats());
+      }
       ctx.result(gson.toJson(status));
     });
 
     // Main search endpoint: GET
     // /search?q={term}&author={name}&language={code}&year={YYYY}
+    // q may use AND/OR/NOT, parentheses, "quoted phrases", NEAR/k and author:/lang:/year:
+    // clauses, e.g. q=("white whale" NEAR/5 ahab) OR leviathan NOT author:hobbes
     app.get("/search", SearchAPI::handleSearch);
   }
 
@@ -79,25 +128,53 @@ public class SearchAPI {
         return;
       }
 
-      // Search for books containing the search term(s)
-      List<Integer> bookIdsFromIndex = searchTerm(query);
-
-      if (bookIdsFromIndex.isEmpty()) {
-        ctx.result(gson.toJson(createEmptyResponse(query, author, language, yearStr)));
-        System.out.println("Request successfully completed. No results found.");
+      // Parse the query; the author/language/year parameters join it as metadata clauses.
+      // Without a language it is read with every search language's analyzer.
+      String analysisLanguage = language != null && !language.isBlank() ? language : BooleanQuery.languageClause(query);
+      BooleanQuery parsed;
+      try {
+        parsed = (analysisLanguage != null
+            ? BooleanQuery.parse(query, Analyzer.forLanguage(analysisLanguage))
+            : BooleanQuery.parse(query, Analyzer.searchLanguages()))
+            .filteredBy(metadataParams(author, language, yearStr));
+      } catch (IllegalArgumentException e) {
+        ctx.status(400).result(gson.toJson(Map.of("error", "Invalid query: " + e.getMessage())));
+        System.err.println("Invalid request: " + e.getMessage());
         return;
       }
 
-      // Apply metadata filters
-      List<Integer> filteredBookIds = applyMetadataFilters(bookIdsFromIndex, author, language, yearStr);
+      // Serve repeated queries from the result cache
+      String key = null;
+      long epoch = 0;
+      if (resultCache != null) {
+        key = parsed.canonical();
+        epoch = resultCache.epoch();
+        QueryResultCache.Entry cached = resultCache.get(key);
+        if (cached != null) {
+          ctx.result(responseBytes(query, author, language, yearStr, cached.count(), cached.json()));
+          System.out.println("Request successfully completed from cache. " + cached.count() + " results found.");
+          return;
+        }
+      }
+
+      // Search for books matching the query and filters
+      int[] bookIds = searchBooks(parsed);
 
       // Fetch book details
-      List<Map<String, Object>> results = fetchBookDetails(filteredBookIds);
+      List<Integer> ids = new ArrayList<>(bookIds.length);
+      for (int id : bookIds) {
+        ids.add(id);
+      }
+      List<Map<String, Object>> results = fetchBookDetails(ids);
 
       // Build response
-      Map<String, Object> response = buildResponse(query, author, language, yearStr, results);
-      ctx.result(gson.toJson(response));
-      System.out.println("Request successfully completed. " + results.size() + " results found.");
+      byte[] resultsJson = gson.toJson(results).getBytes(StandardCharsets.UTF_8);
+      if (resultCache != null) {
+        resultCache.put(key, resultsJson, results.size(), epoch);
+      }
+      ctx.result(responseBytes(query, author, language, yearStr, results.size(), resultsJson));
+      System.out.println(results.isEmpty() ? "Request successfully completed. No results found."
+          : "Request successfully completed. " + results.size() + " results found.");
 
     } catch (Exception e) {
       System.err.println("Error in search: " + e.getMessage());
@@ -107,106 +184,295 @@ public class SearchAPI {
     }
   }
 
-  /* Searches the inverted index for books containing all terms in the query. */
-  private static List<Integer> searchTerm(String query) {
-    String[] terms = query.toLowerCase().trim().split("\\s+");
+  /*
+   * Evaluates the query against the inverted index. Its words went through the same
+   * analyzer as books of the requested language (or of each search language), so
+   * stopwords are dropped and terms are stemmed exactly as they were indexed; see
+   * BooleanQuery for the planning.
+   */
+  private static int[] searchBooks(BooleanQuery query) {
+    return query.evaluate(new BooleanQuery.Source() {
+      @Override
+      public Map<String, int[]> postings(Collection<String> terms) {
+        return getPostings(new ArrayList<>(terms));
+      }
 
-    if (terms.length == 0) {
-      return new ArrayList<>();
-    }
+      @Override
+      public int[] metadata(List<BooleanQuery.Field> fields, int[] candidates) {
+        return filterMetadata(fields, candidates);
+      }
 
-    // Get postings for first term
-    List<Integer> result = getPostingsForTerm(terms[0]);
+      @Override
+      public int[] positional(PositionalQuery query, int[] candidates) {
+        return filterPositions(query, candidates);
+      }
+    });
+  }
 
-    // Intersect with postings for remaining terms
-    for (int i = 1; i < terms.length; i++) {
-      List<Integer> nextPostings = getPostingsForTerm(terms[i]);
-      result = intersection(result, nextPostings);
+  /* The author/language/year request parameters as metadata clauses. */
+  private static List<BooleanQuery.Field> metadataParams(String author, String language, String yearStr) {
+    List<BooleanQuery.Field> fields = new ArrayList<>();
+    if (author != null && !author.trim().isEmpty()) {
+      fields.add(new BooleanQuery.Field("author", author.trim()));
+    }
+    if (language != null && !language.trim().isEmpty()) {
+      fields.add(new BooleanQuery.Field("language", language.trim()));
+    }
+    if (yearStr != null && !yearStr.trim().isEmpty()) {
+      fields.add(new BooleanQuery.Field("year", yearStr.trim()));
+    }
+    return fields;
+  }
 
-      if (result.isEmpty()) {
-        break; // No need to continue if intersection is empty
+  /*
+   * Keeps the candidates whose term positions satisfy the phrases and NEAR operators.
+   * Positions come from the positional index in one read; books it does not cover
+   * (INDEX_POSITIONS off, or indexed before it was on) are checked by re-analyzing
+   * their text.
+   */
+  private static int[] filterPositions(PositionalQuery parsed, int[] candidates) {
+    List<String> terms = parsed.positionalTerms();
+    List<Integer> ids = new ArrayList<>(candidates.length);
+    for (int id : candidates) {
+      ids.add(id);
+    }
+    Map<Integer, Map<String, int[]>> positions = indexStore.readPositions(ids, terms);
+    IntList matched = new IntList();
+    int scanned = 0;
+    for (int id : candidates) {
+      Map<String, int[]> bookPositions = positions.get(id);
+      if (bookPositions == null) {
+        bookPositions = positionsFromText(id, terms, parsed.analyzer());
+        scanned++;
+      }
+      if (bookPositions != null && parsed.matches(bookPositions)) {
+        matched.add(id);
       }
     }
+    System.out.printf("Positional check: %d of %d candidates match (%d checked from full text).%n",
+        matched.size(), candidates.length, scanned);
+    return matched.toArray();
+  }
 
-    return result;
+  private static Map<String, int[]> positionsFromText(int bookId, List<String> terms, Analyzer analyzer) {
+    try {
+      String text = null;
+      if (datalake != null) {
+        datalake.refresh();
+        text = datalake.readContent(bookId);
+      }
+      if (text == null) {
+        Document book = booksCollection.find(Filters.eq("id", bookId))
+            .projection(Projections.include("content"))
+            .first();
+        text = book == null ? null : BookCodec.readText(book, "content");
+      }
+      if (text == null) {
+        return null;
+      }
+      Map<String, IntList> all = analyzer.analyzePositions(text, new Tokenizer());
+      Map<String, int[]> positions = new HashMap<>();
+      for (String term : terms) {
+        IntList p = all.get(term);
+        if (p != null) {
+          positions.put(term, p.toArray());
+        }
+      }
+      return positions;
+    } catch (IOException e) {
+      System.err.println("Could not read text of book " + bookId + ": " + e.getMessage());
+      return null;
+    }
   }
 
   /*
-   * Gets the list of book IDs (postings) for a single term from the inverted
-   * index.
+   * Gets the sorted book IDs (postings) of the terms from the inverted index. Terms
+   * missing from the posting cache are read together, one query per index collection
+   * in parallel. Cached arrays are shared and must not be modified.
    */
-  private static List<Integer> getPostingsForTerm(String term) {
+  private static Map<String, int[]> getPostings(List<String> terms) {
+    Map<String, int[]> postings = new HashMap<>();
     try {
-      /* Search in the index in collections, which are separated by the first letter of the term */
-      MongoCollection<Document> collection = indexDb.getCollection(term.substring(0, 1));
-      System.out.println("Searching in the collection: " + collection.getNamespace());
-      Document indexDoc = collection.find(Filters.eq("term", term)).first();
-      System.out.println(indexDoc);
-
-      if (indexDoc == null) {
-        return new ArrayList<>();
+      if (segmentIndex != null && segmentIndex.available()) {
+        // local memory-mapped segments holding every book, no database round trip
+        for (String term : terms) {
+          postings.put(term, segmentIndex.postings(term));
+        }
+        return postings;
       }
-
-      List<?> postings = indexDoc.getList("postings", Integer.class);
-      return postings != null ? new ArrayList<>((List<Integer>) postings) : new ArrayList<>();
+      List<String> missing = new ArrayList<>();
+      for (String term : terms) {
+        int[] cached = postingCache == null ? null : postingCache.get(term);
+        if (cached != null) {
+          postings.put(term, cached);
+        } else {
+          missing.add(term);
+        }
+      }
+      if (missing.isEmpty()) {
+        return postings;
+      }
+      long stamp = postingCache == null ? 0 : postingCache.stamp();
+      System.out.println("Reading postings of " + missing + " from " + indexStore.namespace());
+      Map<String, int[]> read = indexStore.readPostings(missing);
+      for (Map.Entry<String, int[]> entry : read.entrySet()) {
+        if (postingCache != null) {
+          postingCache.put(entry.getKey(), entry.getValue(), stamp);
+        }
+        postings.put(entry.getKey(), entry.getValue());
+      }
+      return postings;
 
     } catch (Exception e) {
-      System.err.println("Error fetching postings for term '" + term + "':" + e.getMessage());
-      return new ArrayList<>();
+      System.err.println("Error fetching postings for terms " + terms + ": " + e.getMessage());
+      return new HashMap<>();
     }
   }
 
-    /* Applies metadata filters (author, language, year) to the list of book IDs. */
-    private static List<Integer> applyMetadataFilters(List<Integer> bookIds, String author, String language,
-                                                      String yearStr) {
-        if (bookIds.isEmpty() || (author == null && language == null && yearStr == null)) {
-            return bookIds;
-        }
-        System.out.println("Applying filters: " + bookIds + " author=" + author + " language=" + language + " year=" + yearStr);
-
-        // Build MongoDB filter
-        List<Bson> filters = new ArrayList<>();
-        filters.add(Filters.in("id", bookIds));
-
-        if (author != null && !author.trim().isEmpty()) {
-            // Search in the "author" field directly, case-insensitive
-            filters.add(Filters.regex("author", author, "i"));
-            System.out.println("Added author filter for: " + author);
+  /*
+   * Drops cached postings of the terms the indexer reports as changed, every
+   * POSTING_CACHE_POLL_MS; everything after a namespace swap or a gap in the log.
+   * Any change advances the result cache epoch, and so does a reload of the segment
+   * manifest: segments are published some time after the changes are logged. The
+   * metadata store becoming ready advances it once too, as filters switch over to it.
+   */
+  private static void startCacheInvalidation() {
+    long pollMs = Config.getLong("POSTING_CACHE_POLL_MS", 500);
+    Thread poller = new Thread(() -> {
+      long seen = indexChanges.latest();
+      String namespace = indexStore.namespace();
+      long segmentGeneration = segmentIndex == null ? 0 : segmentIndex.generation();
+      boolean metadataReady = metadataStore == null || metadataStore.ready();
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(pollMs);
+          String current = indexStore.namespace();
+          boolean changed = !current.equals(namespace);
+          if (changed && postingCache != null) {
+            postingCache.clear();
+          }
+          namespace = current;
+          if (segmentIndex != null) {
+            long generation = segmentIndex.generation();
+            changed |= generation != segmentGeneration;
+            segmentGeneration = generation;
+          }
+          if (!metadataReady && metadataStore.ready()) {
+            metadataReady = true;
+            changed = true;
+          }
+          for (Document change : indexChanges.readAfter(seen, 1000)) {
+            long seq = change.get("_id", Number.class).longValue();
+            if (postingCache != null) {
+              if (seq != seen + 1 || change.getBoolean("all", false)) {
+                postingCache.clear();
+              } else {
+                postingCache.invalidate(change.getList("terms", String.class));
+              }
+            }
+            seen = seq;
+            changed = true;
+          }
+          if (changed && resultCache != null) {
+            resultCache.advanceEpoch();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Exception e) {
+          System.err.println("Cache invalidation failed, clearing the caches: " + e.getMessage());
+          if (postingCache != null) {
+            postingCache.clear();
+          }
+          if (resultCache != null) {
+            resultCache.advanceEpoch();
+          }
         }
+      }
+    }, "cache-invalidation");
+    poller.setDaemon(true);
+    poller.start();
+  }
 
-        if (language != null && !language.trim().isEmpty()) {
-            // Search in the "language" field directly, case-insensitive
-            filters.add(Filters.regex("language", language, "i"));
-            System.out.println("Added language filter for: " + language);
-        }
+  /*
+   * Sorted ids of the books among candidates (all books if null) matching every
+   * metadata clause. Answered by the in-memory metadata store once it is loaded;
+   * until then by one query on the books collection. Author and language match
+   * case-insensitively anywhere in the field; year (a year or a range) is compared
+   * with the book's year as extractYear reads it, the first 4-digit year of
+   * release_date, in both cases.
+   */
+  private static int[] filterMetadata(List<BooleanQuery.Field> fields, int[] candidates) {
+    if (metadataStore != null && metadataStore.ready()) {
+      return metadataStore.filter(fields, candidates);
+    }
+    System.out.println("Applying filters: " + fields + " to "
+        + (candidates == null ? "all books" : candidates.length + " candidates"));
+
+    // Build MongoDB filter
+    List<Bson> filters = new ArrayList<>();
+    if (candidates != null) {
+      List<Integer> ids = new ArrayList<>(candidates.length);
+      for (int id : candidates) {
+        ids.add(id);
+      }
+      filters.add(Filters.in("id", ids));
+    }
 
-        if (yearStr != null && !yearStr.trim().isEmpty()) {
-            try {
-                // Extract the year from the release_date field
-                int year = Integer.parseInt(yearStr);
-                // We need to search for the year in the release_date string using regex
-                String yearPattern = "\\b" + year + "\\b"; // Word boundary to match exact year
-                filters.add(Filters.regex("release_date", yearPattern));
-                System.out.println("Added year filter for: " + year);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid year format: " + yearStr);
-            }
+    // release_date is free text, so years are compared after reading them like the store does
+    List<int[]> yearRanges = new ArrayList<>();
+    for (BooleanQuery.Field field : fields) {
+      switch (field.name()) {
+        case "author" -> filters.add(Filters.regex("author", field.value(), "i"));
+        case "language" -> filters.add(Filters.regex("language", field.value(), "i"));
+        case "year" -> {
+          int[] range = MetadataStore.parseYearRange(field.value());
+          if (range == null) {
+            System.err.println("Invalid year format: " + field.value());
+          } else {
+            yearRanges.add(range);
+          }
         }
+        default -> System.err.println("Unknown filter ignored: " + field.name());
+      }
+    }
 
-    Bson combinedFilter = Filters.and(filters);
+    Bson combinedFilter = filters.isEmpty() ? new Document() : Filters.and(filters);
 
     // Query books collection
-    List<Integer> filteredIds = new ArrayList<>();
-    try (MongoCursor<Document> cursor = booksCollection.find(combinedFilter).iterator()) {
+    IntList filteredIds = new IntList();
+    try (MongoCursor<Document> cursor = booksCollection.find(combinedFilter)
+        .projection(Projections.include("id", "release_date"))
+        .iterator()) {
       while (cursor.hasNext()) {
-        Document document = cursor.next();
-        filteredIds.add(document.getInteger("id"));
+        Document book = cursor.next();
+        Integer id = book.getInteger("id");
+        if (id != null && inYearRanges(book.getString("release_date"), yearRanges)) {
+          filteredIds.add(id);
+        }
       }
     }
+    filteredIds.sortUnique();
 
-        System.out.println("Filter result count: " + filteredIds.size());
-        return filteredIds;
+    System.out.println("Filter result count: " + filteredIds.size());
+    return filteredIds.toArray();
+  }
+
+  private static boolean inYearRanges(String releaseDate, List<int[]> ranges) {
+    if (ranges.isEmpty()) {
+      return true;
+    }
+    String year = extractYear(releaseDate);
+    if ("unknown".equals(year)) {
+      return false;
     }
+    int y = Integer.parseInt(year);
+    for (int[] range : ranges) {
+      if (y < range[0] || y > range[1]) {
+        return false;
+      }
+    }
+    return true;
+  }
 
   /* Fetches full book details for the given book IDs. */
   private static List<Map<String, Object>> fetchBookDetails(List<Integer> bookIds) {
@@ -219,6 +485,7 @@ public class SearchAPI {
 
     try (MongoCursor<Document> cursor = booksCollection
         .find(Filters.in("id", bookIds))
+        .projection(Projections.include("id", "title", "author", "language", "release_date"))
         .iterator()) {
 
       while (cursor.hasNext()) {
@@ -239,6 +506,8 @@ public class SearchAPI {
         return results;
     }
 
+    private static final Pattern YEAR_PATTERN = Pattern.compile("\\b(\\d{4})\\b");
+
     /* Extracts just the year from the release_date string. */
     public static String extractYear(String text) {
         if (text == null || text.isEmpty()) {
@@ -246,8 +515,7 @@ public class SearchAPI {
         }
 
         // Try to find any 4-digit year in the text
-        Pattern yearPattern = Pattern.compile("\\b(\\d{4})\\b");
-        Matcher matcher = yearPattern.matcher(text);
+        Matcher matcher = YEAR_PATTERN.matcher(text);
 
         if (matcher.find()) {
             return matcher.group(1);
@@ -256,14 +524,6 @@ public class SearchAPI {
         return "unknown";
     }
 
-  /* Returns the intersection of two lists. */
-  private static List<Integer> intersection(List<Integer> list1, List<Integer> list2) {
-    Set<Integer> set1 = new HashSet<>(list1);
-    return list2.stream()
-        .filter(set1::contains)
-        .collect(Collectors.toList());
-  }
-
   /* Builds the JSON response according to the API spec. */
   private static Map<String, Object> buildResponse(String query, String author, String language, String yearStr,
       List<Map<String, Object>> results) {
@@ -288,6 +548,26 @@ public class SearchAPI {
     return response;
   }
 
+  /*
+   * The response as JSON bytes: the small query/filters/count header is serialized
+   * per request (it echoes the query as written), the results array is spliced in
+   * as already-serialized bytes.
+   */
+  private static byte[] responseBytes(String query, String author, String language, String yearStr, int count,
+      byte[] resultsJson) {
+    Map<String, Object> header = createEmptyResponse(query, author, language, yearStr);
+    header.remove("results");
+    header.put("count", count);
+    byte[] head = gson.toJson(header).getBytes(StandardCharsets.UTF_8);
+    byte[] middle = ",\"results\":".getBytes(StandardCharsets.UTF_8);
+    byte[] out = new byte[head.length - 1 + middle.length + resultsJson.length + 1];
+    System.arraycopy(head, 0, out, 0, head.length - 1);
+    System.arraycopy(middle, 0, out, head.length - 1, middle.length);
+    System.arraycopy(resultsJson, 0, out, head.length - 1 + middle.length, resultsJson.length);
+    out[out.length - 1] = '}';
+    return out;
+  }
+
   private static Map<String, Object> createEmptyResponse(String query, String author, String language, String yearStr) {
     return buildResponse(query, author, language, yearStr, new ArrayList<>());
   }
@@ -0,0 +1,452 @@
+package bigdatastage2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Local, memory-mapped copy of the inverted index made of immutable segment files.
+ *
+ * Segment layout:
+ * header [magic][version][term count][dictionary offset][deleted count]
+ * postings per term: varint gaps (see PostingBlocks)
+ * dictionary: offset table (one long per term), then per term
+ * [term length][term UTF-8][postings offset][postings bytes][document frequency]
+ * deleted: sorted book ids (version 2)
+ * Terms are sorted by their UTF-8 bytes so lookups binary-search the mapped file.
+ * Segments are immutable, so a removed or re-indexed book is recorded as deleted in
+ * a newer segment: its postings in older segments are ignored, and the newer segment
+ * holds the terms it still has.
+ *
+ * The set of live segments is listed in segments.manifest, which is replaced
+ * atomically; readers reopen when it changes. MongoDB stays the system of record.
+ * Incremental segments only hold the books indexed since the indexer started
+ * publishing, so readers use segments only once a rebuild has published a base with
+ * every book; the manifest then starts with a "# complete" line.
+ */
+public class SegmentIndex {
+
+  private static final int MAGIC = 0x53494458; // "SIDX"
+  private static final int VERSION = 2;
+  private static final int HEADER = 24;
+  static final String MANIFEST = "segments.manifest";
+  private static final String COMPLETE = "# complete";
+
+  /* True when the indexer publishes segments and the search service reads them. */
+  public static boolean enabled() {
+    return !Config.get("SEGMENT_DIR", "").isEmpty();
+  }
+
+  public static Path directory() {
+    return Paths.get(Config.get("SEGMENT_DIR", "segments"));
+  }
+
+  // ---------- one segment ----------
+
+  /* Read-only view of one mapped segment file. */
+  public static class Segment {
+    final String name;
+    private final MappedByteBuffer buf;
+    private final int termCount;
+    private final long dictOffset;
+    final int[] deleted;
+
+    Segment(Path file) throws IOException {
+      this.name = file.getFileName().toString();
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+        buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+      int version = buf.getInt(4);
+      if (buf.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+        throw new IOException("Not a segment file: " + file);
+      }
+      termCount = buf.getInt(8);
+      dictOffset = buf.getLong(12);
+      // version 1 segments have no deletions
+      deleted = new int[version == 1 ? 0 : buf.getInt(20)];
+      for (int i = 0, pos = buf.capacity() - 4 * deleted.length; i < deleted.length; i++, pos += 4) {
+        deleted[i] = buf.getInt(pos);
+      }
+    }
+
+    int termCount() {
+      return termCount;
+    }
+
+    private int entryPosition(int i) {
+      return (int) buf.getLong((int) dictOffset + i * 8);
+    }
+
+    /* Index of the term in the dictionary or -1. */
+    int find(byte[] term) {
+      int lo = 0;
+      int hi = termCount - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int cmp = compareAt(entryPosition(mid), term);
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else if (cmp > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    private int compareAt(int pos, byte[] term) {
+      int len = buf.getShort(pos) & 0xFFFF;
+      int n = Math.min(len, term.length);
+      for (int i = 0; i < n; i++) {
+        int c = (buf.get(pos + 2 + i) & 0xFF) - (term[i] & 0xFF);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return len - term.length;
+    }
+
+    byte[] termBytes(int i) {
+      int pos = entryPosition(i);
+      byte[] term = new byte[buf.getShort(pos) & 0xFFFF];
+      buf.get(pos + 2, term);
+      return term;
+    }
+
+    int documentFrequency(int i) {
+      int pos = entryPosition(i);
+      return buf.getInt(pos + 2 + (buf.getShort(pos) & 0xFFFF) + 12);
+    }
+
+    int[] postings(int i) {
+      int pos = entryPosition(i);
+      int p = pos + 2 + (buf.getShort(pos) & 0xFFFF);
+      long offset = buf.getLong(p);
+      int bytes = buf.getInt(p + 8);
+      int df = buf.getInt(p + 12);
+      byte[] data = new byte[bytes];
+      buf.get((int) offset, data);
+      int[] ids = new int[df];
+      PostingBlocks.decode(data, df, ids, 0);
+      return ids;
+    }
+  }
+
+  // ---------- writing ----------
+
+  /* Streams postings into a new segment file; terms may arrive in any order. */
+  public static class Writer implements AutoCloseable {
+    private final Path file;
+    private final DataOutputStream out;
+    private final List<byte[]> terms = new ArrayList<>();
+    private final List<long[]> locations = new ArrayList<>();
+    private long position = HEADER;
+    private int[] deleted = new int[0];
+    private boolean closed = false;
+
+    public Writer(Path file) throws IOException {
+      this.file = file;
+      OutputStream os = Files.newOutputStream(file);
+      this.out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+      out.write(new byte[HEADER]);
+    }
+
+    public Path file() {
+      return file;
+    }
+
+    /* Marks books deleted in all older segments. */
+    public void delete(int[] bookIds) {
+      IntList ids = new IntList(bookIds.length);
+      ids.addAll(bookIds, bookIds.length);
+      ids.sortUnique();
+      deleted = ids.toArray();
+    }
+
+    public void add(String term, int[] sortedPostings) throws IOException {
+      if (sortedPostings.length == 0) {
+        return;
+      }
+      byte[] data = PostingBlocks.encode(sortedPostings, 0, sortedPostings.length);
+      out.write(data);
+      terms.add(term.getBytes(StandardCharsets.UTF_8));
+      locations.add(new long[] { position, data.length, sortedPostings.length });
+      position += data.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      Integer[] order = new Integer[terms.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(terms.get(a), terms.get(b)));
+
+      long dictOffset = position;
+      long entry = dictOffset + 8L * order.length;
+      for (Integer i : order) {
+        out.writeLong(entry);
+        entry += 2 + terms.get(i).length + 16;
+      }
+      for (Integer i : order) {
+        byte[] t = terms.get(i);
+        long[] loc = locations.get(i);
+        out.writeShort(t.length);
+        out.write(t);
+        out.writeLong(loc[0]);
+        out.writeInt((int) loc[1]);
+        out.writeInt((int) loc[2]);
+      }
+      for (int id : deleted) {
+        out.writeInt(id);
+      }
+      out.close();
+
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER)
+            .putInt(MAGIC).putInt(VERSION).putInt(order.length).putLong(dictOffset).putInt(deleted.length);
+        header.flip();
+        ch.write(header, 0);
+        ch.force(true);
+      }
+    }
+  }
+
+  /*
+   * Per segment (oldest first), the sorted ids deleted by any newer one: the postings
+   * of those ids in that segment are ignored.
+   */
+  static int[][] deletedByNewer(List<Segment> segments) {
+    int[][] hidden = new int[segments.size()][];
+    IntList newer = new IntList();
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      newer.sortUnique();
+      hidden[i] = newer.toArray();
+      int[] deleted = segments.get(i).deleted;
+      newer.addAll(deleted, deleted.length);
+    }
+    return hidden;
+  }
+
+  /*
+   * Merges consecutive segments (oldest first) term by term into a new segment file,
+   * dropping the postings deleted by newer inputs. The deletions are kept for the
+   * older segments outside the merge unless keepDeleted is false.
+   */
+  public static void merge(List<Segment> inputs, Path target, boolean keepDeleted) throws IOException {
+    class Cursor {
+      final Segment segment;
+      final int[] hidden;
+      int index = 0;
+      byte[] term;
+
+      Cursor(Segment segment, int[] hidden) {
+        this.segment = segment;
+        this.hidden = hidden;
+      }
+
+      boolean advance() {
+        if (index >= segment.termCount()) {
+          return false;
+        }
+        term = segment.termBytes(index);
+        return true;
+      }
+    }
+    PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.term, b.term));
+    int[][] hidden = deletedByNewer(inputs);
+    IntList deleted = new IntList();
+    for (int i = 0; i < inputs.size(); i++) {
+      Cursor c = new Cursor(inputs.get(i), hidden[i]);
+      if (c.advance()) {
+        heap.add(c);
+      }
+      deleted.addAll(inputs.get(i).deleted, inputs.get(i).deleted.length);
+    }
+    try (Writer writer = new Writer(target)) {
+      if (keepDeleted) {
+        writer.delete(deleted.toArray());
+      }
+      IntList merged = new IntList(1024);
+      while (!heap.isEmpty()) {
+        byte[] term = heap.peek().term;
+        merged.clear();
+        while (!heap.isEmpty() && Arrays.equals(heap.peek().term, term)) {
+          Cursor c = heap.poll();
+          int[] ids = c.segment.postings(c.index);
+          if (c.hidden.length > 0) {
+            ids = PostingLists.difference(ids, c.hidden);
+          }
+          merged.addAll(ids, ids.length);
+          c.index++;
+          if (c.advance()) {
+            heap.add(c);
+          }
+        }
+        merged.sortUnique();
+        writer.add(new String(term, StandardCharsets.UTF_8), merged.toArray());
+      }
+    }
+  }
+
+  // ---------- manifest ----------
+
+  /* Live segment names in publish order, or an empty list. */
+  static List<String> readManifest(Path dir) throws IOException {
+    Path manifest = dir.resolve(MANIFEST);
+    if (!Files.exists(manifest)) {
+      return new ArrayList<>();
+    }
+    List<String> names = new ArrayList<>();
+    for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+      if (!line.isBlank() && !line.startsWith("#")) {
+        names.add(line.trim());
+      }
+    }
+    return names;
+  }
+
+  /* True if the live segments together hold every indexed book. */
+  static boolean manifestComplete(Path dir) throws IOException {
+    Path manifest = dir.resolve(MANIFEST);
+    return Files.exists(manifest) && Files.readAllLines(manifest, StandardCharsets.UTF_8).contains(COMPLETE);
+  }
+
+  /* Replaces the manifest atomically: readers see either the old or the new list. */
+  static void writeManifest(Path dir, List<String> names, boolean complete) throws IOException {
+    Path tmp = dir.resolve(MANIFEST + ".tmp");
+    List<String> lines = new ArrayList<>();
+    if (complete) {
+      lines.add(COMPLETE);
+    }
+    lines.addAll(names);
+    Files.write(tmp, lines, StandardCharsets.UTF_8);
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      ch.force(true);
+    }
+    Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // ---------- reader ----------
+
+  /* The live segments, oldest first, with the ids newer segments deleted from each. */
+  private record Live(Map<String, Segment> segments, Map<String, int[]> hidden, boolean complete) {
+  }
+
+  private final Path dir;
+  private volatile Live live = new Live(new LinkedHashMap<>(), Map.of(), false);
+  private volatile long manifestStamp = -1;
+  private volatile long generation = 0;
+  private volatile long lastCheck = 0;
+
+  public SegmentIndex(Path dir) {
+    this.dir = dir;
+  }
+
+  /* True once a complete base has been published; until then postings come from MongoDB. */
+  public boolean available() {
+    refreshIfChanged();
+    Live l = live;
+    return l.complete() && !l.segments().isEmpty();
+  }
+
+  /* Number of manifest reloads; it moves whenever the postings read may have changed. */
+  public long generation() {
+    refreshIfChanged();
+    return generation;
+  }
+
+  /* Union of the term's postings over all live segments, without deleted ones, sorted. */
+  public int[] postings(String term) {
+    refreshIfChanged();
+    Live l = live;
+    byte[] key = term.getBytes(StandardCharsets.UTF_8);
+    int[] result = null;
+    IntList merged = null;
+    for (Segment s : l.segments().values()) {
+      int i = s.find(key);
+      if (i < 0) {
+        continue;
+      }
+      int[] ids = s.postings(i);
+      int[] hidden = l.hidden().get(s.name);
+      if (hidden.length > 0) {
+        ids = PostingLists.difference(ids, hidden);
+      }
+      if (result == null) {
+        result = ids;
+      } else {
+        if (merged == null) {
+          merged = new IntList(result.length + ids.length);
+          merged.addAll(result, result.length);
+        }
+        merged.addAll(ids, ids.length);
+      }
+    }
+    if (merged != null) {
+      merged.sortUnique();
+      return merged.toArray();
+    }
+    return result == null ? new int[0] : result;
+  }
+
+  /* Checks the manifest at most every 500 ms and remaps when it was replaced. */
+  private void refreshIfChanged() {
+    long now = System.currentTimeMillis();
+    if (now - lastCheck < 500) {
+      return;
+    }
+    lastCheck = now;
+    try {
+      Path manifest = dir.resolve(MANIFEST);
+      long stamp = Files.exists(manifest) ? Files.getLastModifiedTime(manifest).toMillis() ^ Files.size(manifest) : -1;
+      if (stamp == manifestStamp) {
+        return;
+      }
+      Live l;
+      synchronized (this) {
+        Map<String, Segment> next = new LinkedHashMap<>();
+        for (String name : readManifest(dir)) {
+          Segment existing = live.segments().get(name);
+          next.put(name, existing != null ? existing : new Segment(dir.resolve(name)));
+        }
+        List<Segment> ordered = new ArrayList<>(next.values());
+        int[][] deleted = deletedByNewer(ordered);
+        Map<String, int[]> hidden = new HashMap<>();
+        for (int i = 0; i < ordered.size(); i++) {
+          hidden.put(ordered.get(i).name, deleted[i]);
+        }
+        l = new Live(next, hidden, manifestComplete(dir));
+        live = l;
+        manifestStamp = stamp;
+        generation++;
+      }
+      System.out.println("Segment index reloaded: " + l.segments().size() + " segment(s)"
+          + (l.complete() ? "." : ", no complete base yet."));
+    } catch (IOException e) {
+      System.err.println("Could not reload segment index: " + e.getMessage());
+    }
+  }
+}
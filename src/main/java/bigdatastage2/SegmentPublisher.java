@@ -0,0 +1,308 @@
+package bigdatastage2;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writer side of the segment index (see SegmentIndex), owned by the indexer.
+ *
+ * Incrementally indexed books are buffered in memory and flushed as a small segment
+ * every SEGMENT_FLUSH_MS or SEGMENT_FLUSH_BOOKS books, along with the books removed
+ * or re-indexed with fewer terms since the last flush, which the segment marks
+ * deleted in all older ones (see SegmentIndex). Full rebuilds publish one segment
+ * that replaces all others, or (streaming) retire the old ones once every book was
+ * re-published; either marks the manifest complete, and only then are the segments
+ * read. A background task merges segments once there are more than
+ * SEGMENT_MERGE_MAX. Segment files are written under a temp name and moved into
+ * place before the manifest lists them.
+ */
+public class SegmentPublisher {
+
+  private static final long FLUSH_MS = Config.getLong("SEGMENT_FLUSH_MS", 5000);
+  private static final int FLUSH_BOOKS = Config.getInt("SEGMENT_FLUSH_BOOKS", 1000);
+  private static final int MERGE_MAX = Config.getInt("SEGMENT_MERGE_MAX", 10);
+
+  private final Path dir;
+  private final FileLock writerLock;
+  private final AtomicLong generation = new AtomicLong();
+  private final Object manifestLock = new Object();
+  // segments are published in the order their buffers were taken, so deletions apply to older ones only
+  private final Object flushLock = new Object();
+  private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "segment-publisher");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private Map<String, IntList> buffer = new HashMap<>();
+  private IntList deleted = new IntList();
+  private int bufferedBooks = 0;
+
+  public SegmentPublisher(Path dir) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    writerLock = FileChannel.open(dir.resolve(".writer.lock"), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE).tryLock();
+    if (writerLock == null) {
+      throw new IOException("Segment directory " + dir + " is already used by another indexer");
+    }
+    long max = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+      for (Path f : files) {
+        String name = f.getFileName().toString();
+        if (name.endsWith(".tmp")) {
+          Files.deleteIfExists(f); // left over from a crash before publishing
+          continue;
+        }
+        max = Math.max(max, Long.parseLong(name.substring(8, name.indexOf('.'))));
+      }
+    }
+    generation.set(max);
+  }
+
+  /* Starts the periodic flush and merge task. */
+  public void start() {
+    background.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+        mergeIfNeeded();
+      } catch (Exception e) {
+        System.err.println("Segment publishing failed: " + e.getMessage());
+      }
+    }, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // ---------- incremental ----------
+
+  /* Buffers the terms of one indexed book for the next flush. */
+  public synchronized void add(int bookId, Collection<String> terms) {
+    for (String term : terms) {
+      buffer.computeIfAbsent(term, k -> new IntList(2)).add(bookId);
+    }
+    bufferedBooks++;
+    flushIfFull();
+  }
+
+  /* Buffers the merged postings of a batch of books. */
+  public synchronized void addPostings(Map<String, IntList> postings, int books) {
+    for (Map.Entry<String, IntList> e : postings.entrySet()) {
+      IntList ids = e.getValue();
+      buffer.computeIfAbsent(e.getKey(), k -> new IntList(ids.size())).addAll(ids.raw(), ids.size());
+    }
+    bufferedBooks += books;
+    flushIfFull();
+  }
+
+  /*
+   * Records that a book lost the removed terms (all of them if it was deleted): it is
+   * marked deleted in older segments and buffered again with the terms it still has.
+   */
+  public synchronized void remove(int bookId, Collection<String> removed, Collection<String> terms) {
+    for (String term : removed) {
+      IntList ids = buffer.get(term);
+      if (ids != null) {
+        ids.remove(bookId);
+      }
+    }
+    deleted.add(bookId);
+    for (String term : terms) {
+      buffer.computeIfAbsent(term, k -> new IntList(2)).add(bookId);
+    }
+    bufferedBooks++;
+    flushIfFull();
+  }
+
+  private void flushIfFull() {
+    if (bufferedBooks >= FLUSH_BOOKS) {
+      background.execute(() -> {
+        try {
+          flush();
+        } catch (IOException e) {
+          System.err.println("Segment flush failed: " + e.getMessage());
+        }
+      });
+    }
+  }
+
+  /* Writes the buffered books and deletions as a new segment. */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      Map<String, IntList> pending;
+      IntList pendingDeleted;
+      int books;
+      synchronized (this) {
+        if (buffer.isEmpty() && deleted.isEmpty()) {
+          return;
+        }
+        pending = buffer;
+        pendingDeleted = deleted;
+        books = bufferedBooks;
+        buffer = new HashMap<>();
+        deleted = new IntList();
+        bufferedBooks = 0;
+      }
+      SegmentIndex.Writer writer = newWriter();
+      try (writer) {
+        writer.delete(pendingDeleted.toArray());
+        for (Map.Entry<String, IntList> e : pending.entrySet()) {
+          e.getValue().sortUnique();
+          writer.add(e.getKey(), e.getValue().toArray());
+        }
+      }
+      publish(writer, List.of(), false);
+      System.out.printf("Published segment with %d books (%d terms, %d deleted).%n", books, pending.size(),
+          pendingDeleted.size());
+    }
+  }
+
+  // ---------- publishing ----------
+
+  /* A writer for a new segment; pass it to publishBase() after closing it. */
+  public SegmentIndex.Writer newWriter() throws IOException {
+    return new SegmentIndex.Writer(nextTempFile());
+  }
+
+  private Path nextTempFile() {
+    return dir.resolve(String.format("segment-%08d.idx.tmp", generation.incrementAndGet()));
+  }
+
+  private static String publishedName(Path tmp) {
+    String name = tmp.getFileName().toString();
+    return name.substring(0, name.length() - ".tmp".length());
+  }
+
+  /* Names of the currently published segments, oldest first. */
+  public List<String> liveSegments() throws IOException {
+    synchronized (manifestLock) {
+      return SegmentIndex.readManifest(dir);
+    }
+  }
+
+  /*
+   * Makes the closed segment of a full rebuild visible as the oldest segment and
+   * removes the replaced ones from the manifest in the same step. A rebuild replaces
+   * the segments that were live when it started; incremental segments published
+   * while it ran stay.
+   */
+  public void publishBase(SegmentIndex.Writer closed, Collection<String> replaces) throws IOException {
+    publish(closed, replaces, true);
+  }
+
+  private void publish(SegmentIndex.Writer closed, Collection<String> replaces, boolean base) throws IOException {
+    Path tmp = closed.file();
+    String name = publishedName(tmp);
+    Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    List<String> dropped = new ArrayList<>();
+    synchronized (manifestLock) {
+      List<String> next = new ArrayList<>();
+      for (String live : SegmentIndex.readManifest(dir)) {
+        if (replaces.contains(live)) {
+          dropped.add(live);
+        } else {
+          next.add(live);
+        }
+      }
+      // a full rebuild becomes the oldest segment, incremental ones are appended
+      next.add(base ? 0 : next.size(), name);
+      SegmentIndex.writeManifest(dir, next, base || SegmentIndex.manifestComplete(dir));
+    }
+    deleteSegments(dropped);
+  }
+
+  /*
+   * Removes the segments a streaming rebuild has re-published in full, after pending
+   * books were flushed, and marks the rest complete: they now hold every book.
+   */
+  public void retire(Collection<String> names) throws IOException {
+    flush();
+    List<String> dropped = new ArrayList<>();
+    synchronized (manifestLock) {
+      List<String> next = new ArrayList<>();
+      for (String live : SegmentIndex.readManifest(dir)) {
+        (names.contains(live) ? dropped : next).add(live);
+      }
+      SegmentIndex.writeManifest(dir, next, true);
+    }
+    deleteSegments(dropped);
+  }
+
+  /* Discards a closed segment that should not be published after all. */
+  public void discard(SegmentIndex.Writer closed) throws IOException {
+    Files.deleteIfExists(closed.file());
+  }
+
+  // ---------- merging ----------
+
+  /*
+   * Merges segments once there are more than SEGMENT_MERGE_MAX. The oldest segment is
+   * left alone while it is much larger than all newer ones together, so a big rebuilt
+   * base is not rewritten for every few small incremental segments.
+   */
+  public void mergeIfNeeded() throws IOException {
+    List<String> live = SegmentIndex.readManifest(dir);
+    if (live.size() <= MERGE_MAX) {
+      return;
+    }
+    long newer = 0;
+    for (int i = 1; i < live.size(); i++) {
+      newer += Files.size(dir.resolve(live.get(i)));
+    }
+    List<String> inputs = Files.size(dir.resolve(live.get(0))) > 4 * newer
+        ? new ArrayList<>(live.subList(1, live.size()))
+        : new ArrayList<>(live);
+
+    List<SegmentIndex.Segment> segments = new ArrayList<>();
+    for (String name : inputs) {
+      segments.add(new SegmentIndex.Segment(dir.resolve(name)));
+    }
+    Path tmp = nextTempFile();
+    // deletions only matter while an older segment stays outside the merge
+    SegmentIndex.merge(segments, tmp, inputs.size() < live.size());
+    String merged = publishedName(tmp);
+
+    synchronized (manifestLock) {
+      List<String> current = SegmentIndex.readManifest(dir);
+      int first = current.indexOf(inputs.get(0));
+      if (first < 0 || !current.containsAll(inputs)) {
+        // a rebuild replaced the segments meanwhile
+        Files.deleteIfExists(tmp);
+        return;
+      }
+      Files.move(tmp, dir.resolve(merged), StandardCopyOption.ATOMIC_MOVE);
+      List<String> next = new ArrayList<>(current);
+      next.removeAll(inputs);
+      next.add(first, merged);
+      SegmentIndex.writeManifest(dir, next, SegmentIndex.manifestComplete(dir));
+    }
+    deleteSegments(inputs);
+    System.out.printf("Merged %d segments into %s.%n", inputs.size(), merged);
+  }
+
+  /*
+   * Readers that still map a removed file keep working (the data stays until unmapped);
+   * readers that reload later only see the new manifest.
+   */
+  private void deleteSegments(List<String> names) {
+    for (String name : names) {
+      try {
+        Files.deleteIfExists(dir.resolve(name));
+      } catch (IOException e) {
+        System.err.println("Could not delete segment " + name + ": " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package bigdatastage2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Single-pass in-memory index builder (SPIMI) for full rebuilds.
+ *
+ * Postings are collected per term in primitive int lists. When the estimated heap
+ * use passes the budget, the block is sorted by term and spilled to a run file.
+ * finish() merges all runs (and the last in-memory block) and hands every term
+ * with its complete, sorted postings to the sink exactly once.
+ */
+public class SpimiIndexBuilder implements Closeable {
+
+  /* Receives the merged postings of one term. */
+  @FunctionalInterface
+  public interface PostingSink {
+    void accept(String term, int[] postings) throws IOException;
+  }
+
+  // rough per-entry heap costs used for the memory estimate
+  private static final long TERM_OVERHEAD = 96;
+  private static final long POSTING_BYTES = 4;
+
+  private final long budgetBytes;
+  private final Path spillDir;
+  private final List<Path> runs = new ArrayList<>();
+  private Map<String, IntList> block = new HashMap<>();
+  private long estimatedBytes = 0;
+  private long postings = 0;
+
+  public SpimiIndexBuilder(long budgetBytes, Path spillDir) throws IOException {
+    this.budgetBytes = budgetBytes;
+    this.spillDir = Files.createDirectories(spillDir);
+  }
+
+  /* Adds the unique terms of one book; safe to call from several tokenizer threads. */
+  public synchronized void add(int bookId, Collection<String> terms) throws IOException {
+    for (String term : terms) {
+      IntList list = block.get(term);
+      if (list == null) {
+        list = new IntList(2);
+        block.put(term, list);
+        estimatedBytes += TERM_OVERHEAD + 2L * term.length();
+      }
+      list.add(bookId);
+      estimatedBytes += POSTING_BYTES;
+    }
+    postings += terms.size();
+    if (estimatedBytes > budgetBytes) {
+      spill();
+    }
+  }
+
+  public synchronized long postingCount() {
+    return postings;
+  }
+
+  public synchronized int runCount() {
+    return runs.size();
+  }
+
+  /* Writes the current block as a run sorted by term: [term][count][ids...]* */
+  private void spill() throws IOException {
+    if (block.isEmpty()) {
+      return;
+    }
+    List<String> terms = new ArrayList<>(block.keySet());
+    terms.sort(null);
+    Path run = spillDir.resolve("run-" + runs.size() + ".bin");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+      for (String term : terms) {
+        IntList list = block.get(term);
+        list.sortUnique();
+        out.writeUTF(term);
+        out.writeInt(list.size());
+        for (int i = 0; i < list.size(); i++) {
+          out.writeInt(list.get(i));
+        }
+      }
+    }
+    runs.add(run);
+    System.out.printf("SPIMI: spilled run %d (%d terms, ~%d MB).%n", runs.size(), terms.size(),
+        estimatedBytes / (1024 * 1024));
+    block = new HashMap<>();
+    estimatedBytes = 0;
+  }
+
+  /* Emits every term once, in term order, with its merged postings. */
+  public synchronized void finish(PostingSink sink) throws IOException {
+    if (runs.isEmpty()) {
+      List<String> terms = new ArrayList<>(block.keySet());
+      terms.sort(null);
+      for (String term : terms) {
+        IntList list = block.get(term);
+        list.sortUnique();
+        sink.accept(term, list.toArray());
+      }
+      block = new HashMap<>();
+      return;
+    }
+    spill();
+    mergeRuns(sink);
+  }
+
+  /* k-way merge of the sorted runs. */
+  private void mergeRuns(PostingSink sink) throws IOException {
+    PriorityQueue<RunReader> heap = new PriorityQueue<>((a, b) -> a.term.compareTo(b.term));
+    List<RunReader> readers = new ArrayList<>();
+    try {
+      for (Path run : runs) {
+        RunReader r = new RunReader(run);
+        readers.add(r);
+        if (r.next()) {
+          heap.add(r);
+        }
+      }
+      IntList merged = new IntList(1024);
+      while (!heap.isEmpty()) {
+        String term = heap.peek().term;
+        merged.clear();
+        while (!heap.isEmpty() && heap.peek().term.equals(term)) {
+          RunReader r = heap.poll();
+          merged.addAll(r.postings, r.count);
+          if (r.next()) {
+            heap.add(r);
+          }
+        }
+        merged.sortUnique();
+        sink.accept(term, merged.toArray());
+      }
+    } finally {
+      for (RunReader r : readers) {
+        r.close();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Path run : runs) {
+      Files.deleteIfExists(run);
+    }
+    runs.clear();
+    block = new HashMap<>();
+  }
+
+  private static class RunReader implements Closeable {
+    private final DataInputStream in;
+    String term;
+    int[] postings = new int[64];
+    int count;
+
+    RunReader(Path run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+    }
+
+    boolean next() throws IOException {
+      try {
+        term = in.readUTF();
+      } catch (EOFException e) {
+        return false;
+      }
+      count = in.readInt();
+      if (postings.length < count) {
+        postings = new int[count];
+      }
+      for (int i = 0; i < count; i++) {
+        postings[i] = in.readInt();
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package bigdatastage2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into lowercase words of at least two letters in a single scan.
+ *
+ * A word is a run of Unicode letters (plus combining marks inside it), so accented
+ * and non-Latin words are kept. Characters are lowercased while scanning into a
+ * reusable buffer and looked up in an open-addressing table of known terms; a String
+ * is only created the first time a term is seen by this tokenizer. The table is
+ * kept across calls (and cleared when it grows past MAX_TERMS), so the common words
+ * of a corpus are allocated once per tokenizer, not once per book.
+ *
+ * Not thread-safe: use one instance per thread.
+ */
+public class Tokenizer {
+
+  public static final int MIN_LENGTH = 2;
+  private static final int MAX_LENGTH = 64;
+  private static final int MAX_TERMS = 1 << 20;
+
+  private final char[] word = new char[MAX_LENGTH + 2];
+  private final int initialCapacity;
+
+  // open-addressing term table: slot -> term, its hash, the call that last saw it and
+  // the term's index in that call's output
+  private String[] terms;
+  private int[] hashes;
+  private int[] seenIn;
+  private int[] outIndex;
+  private int mask;
+  private int count = 0;
+  private int call = 0;
+
+  public Tokenizer() {
+    this(1 << 12);
+  }
+
+  public Tokenizer(int initialCapacity) {
+    this.initialCapacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+    allocate(this.initialCapacity);
+  }
+
+  private void allocate(int capacity) {
+    terms = new String[capacity];
+    hashes = new int[capacity];
+    seenIn = new int[capacity];
+    outIndex = new int[capacity];
+    mask = capacity - 1;
+    count = 0;
+  }
+
+  /* Unique terms of the text in order of first occurrence. */
+  public List<String> uniqueTerms(CharSequence text) {
+    return uniqueTerms(text, null);
+  }
+
+  /*
+   * Unique terms of the text in order of first occurrence; if positions is not null,
+   * positions.get(i) receives the token positions of term i. Positions count every
+   * token the tokenizer keeps, so they are stable under later filtering.
+   */
+  public List<String> uniqueTerms(CharSequence text, List<IntList> positions) {
+    List<String> out = new ArrayList<>();
+    if (text == null) {
+      return out;
+    }
+    if (++call == Integer.MAX_VALUE || count > MAX_TERMS) {
+      allocate(initialCapacity);
+      call = 1;
+    }
+    int len = 0;
+    int letters = 0;
+    int hash = 0;
+    int position = 0;
+    int n = text.length();
+    for (int i = 0; i <= n; i++) {
+      char c = i < n ? text.charAt(i) : ' ';
+      if (c < 128) {
+        // ASCII fast path
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+          c |= 0x20;
+          if (len < word.length) {
+            word[len] = c;
+          }
+          len++;
+          letters++;
+          hash = 31 * hash + c;
+          continue;
+        }
+      } else {
+        int cp = c;
+        int width = 1;
+        if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+          cp = Character.toCodePoint(c, text.charAt(i + 1));
+          width = 2;
+        }
+        boolean letter = Character.isLetter(cp);
+        if (letter || (letters > 0 && Character.getType(cp) == Character.NON_SPACING_MARK)) {
+          int lower = Character.toLowerCase(cp);
+          if (Character.isBmpCodePoint(lower)) {
+            if (len < word.length) {
+              word[len] = (char) lower;
+            }
+            len++;
+            hash = 31 * hash + lower;
+          } else {
+            char hi = Character.highSurrogate(lower);
+            char lo = Character.lowSurrogate(lower);
+            if (len + 1 < word.length) {
+              word[len] = hi;
+              word[len + 1] = lo;
+            }
+            len += 2;
+            hash = 31 * (31 * hash + hi) + lo;
+          }
+          if (letter) {
+            letters++;
+          }
+          i += width - 1;
+          continue;
+        }
+      }
+      // word boundary
+      if (letters >= MIN_LENGTH && len <= MAX_LENGTH) {
+        int slot = lookup(hash, len);
+        if (seenIn[slot] != call) {
+          seenIn[slot] = call;
+          outIndex[slot] = out.size();
+          out.add(terms[slot]);
+          if (positions != null) {
+            positions.add(new IntList(4));
+          }
+        }
+        if (positions != null) {
+          positions.get(outIndex[slot]).add(position);
+        }
+        position++;
+      }
+      len = 0;
+      letters = 0;
+      hash = 0;
+    }
+    return out;
+  }
+
+  /* Slot of the buffered word, inserting it if it is new. */
+  private int lookup(int hash, int len) {
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    while (true) {
+      String t = terms[slot];
+      if (t == null) {
+        terms[slot] = new String(word, 0, len);
+        hashes[slot] = hash;
+        seenIn[slot] = 0;
+        if (++count * 2 > terms.length) {
+          grow();
+          return lookup(hash, len);
+        }
+        return slot;
+      }
+      if (hashes[slot] == hash && matches(t, len)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean matches(String term, int len) {
+    if (term.length() != len) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (term.charAt(i) != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Doubles the table, keeping terms and their per-call marks. */
+  private void grow() {
+    String[] oldTerms = terms;
+    int[] oldHashes = hashes;
+    int[] oldSeen = seenIn;
+    int[] oldIndex = outIndex;
+    terms = new String[oldTerms.length * 2];
+    hashes = new int[terms.length];
+    seenIn = new int[terms.length];
+    outIndex = new int[terms.length];
+    mask = terms.length - 1;
+    for (int i = 0; i < oldTerms.length; i++) {
+      if (oldTerms[i] == null) {
+        continue;
+      }
+      int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+      while (terms[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      terms[slot] = oldTerms[i];
+      hashes[slot] = oldHashes[i];
+      seenIn[slot] = oldSeen[i];
+      outIndex[slot] = oldIndex[i];
+    }
+  }
+
+  /* Drops all remembered terms. */
+  public void clear() {
+    allocate(initialCapacity);
+  }
+}
@@ -0,0 +1,156 @@
+package bigdatastage2;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared write stage for incremental indexing. Books from all indexing threads are
+ * merged into one term -> ids map, which a single flusher writes as one
+ * $addToSet/$each per term once COALESCE_WINDOW_MS has passed since the first
+ * pending book or the pending postings reach the batch limit. A term that occurs
+ * in every book is then written once per flush instead of once per book.
+ *
+ * The batch limit adapts to the observed write latency: a flush slower than
+ * COALESCE_TARGET_MS shrinks it proportionally, a full batch written in under half
+ * the target grows it by half, within [COALESCE_MIN_POSTINGS, COALESCE_MAX_POSTINGS].
+ * While a flush is running, add() blocks once twice the limit is pending.
+ */
+public class WriteCoalescer {
+
+  private static final long WINDOW_MS = Config.getLong("COALESCE_WINDOW_MS", 200);
+  private static final long TARGET_MS = Config.getLong("COALESCE_TARGET_MS", 300);
+  private static final int MIN_POSTINGS = Config.getInt("COALESCE_MIN_POSTINGS", 2000);
+  private static final int MAX_POSTINGS = Config.getInt("COALESCE_MAX_POSTINGS", 2_000_000);
+
+  private final RebuildPipeline.BatchWriter writer;
+  private final Thread flusher;
+
+  // guarded by this
+  private Map<String, IntList> pending = new HashMap<>();
+  private IntList pendingBooks = new IntList();
+  private CompletableFuture<Void> pendingDone = new CompletableFuture<>();
+  private long pendingPostings = 0;
+  private long firstAddedAt = 0;
+  private boolean flushRequested = false;
+
+  private volatile int limit = Config.getInt("COALESCE_POSTINGS", 50_000);
+  private volatile long lastLatencyMs = 0;
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong booksWritten = new AtomicLong();
+  private final AtomicLong postingsWritten = new AtomicLong();
+  private final AtomicLong termWrites = new AtomicLong();
+
+  public WriteCoalescer(RebuildPipeline.BatchWriter writer) {
+    this.writer = writer;
+    this.flusher = new Thread(this::run, "write-coalescer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /*
+   * Queues the terms of one book. The returned future completes when the flush
+   * containing the book is written, or fails with the flush's error.
+   */
+  public synchronized CompletableFuture<Void> add(int bookId, Collection<String> terms) throws InterruptedException {
+    while (pendingPostings >= 2L * limit) {
+      wait();
+    }
+    if (pendingBooks.isEmpty()) {
+      firstAddedAt = System.currentTimeMillis();
+    }
+    for (String term : terms) {
+      pending.computeIfAbsent(term, k -> new IntList(4)).add(bookId);
+    }
+    pendingBooks.add(bookId);
+    pendingPostings += terms.size();
+    if (pendingPostings >= limit) {
+      notifyAll();
+    }
+    return pendingDone;
+  }
+
+  /* Writes what is pending without waiting for the window to close. */
+  public synchronized void flushNow() {
+    if (!pendingBooks.isEmpty()) {
+      flushRequested = true;
+      notifyAll();
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("flushes", flushes.get());
+    m.put("books", booksWritten.get());
+    m.put("postings", postingsWritten.get());
+    m.put("term_writes", termWrites.get());
+    m.put("batch_limit", limit);
+    m.put("last_flush_ms", lastLatencyMs);
+    return m;
+  }
+
+  // ---------- flusher ----------
+
+  private void run() {
+    try {
+      while (true) {
+        Map<String, IntList> batch;
+        IntList books;
+        CompletableFuture<Void> done;
+        long postings;
+        synchronized (this) {
+          while (!due()) {
+            wait(pendingBooks.isEmpty() ? 0 : Math.max(1, firstAddedAt + WINDOW_MS - System.currentTimeMillis()));
+          }
+          batch = pending;
+          books = pendingBooks;
+          done = pendingDone;
+          postings = pendingPostings;
+          pending = new HashMap<>();
+          pendingBooks = new IntList();
+          pendingDone = new CompletableFuture<>();
+          pendingPostings = 0;
+          flushRequested = false;
+          notifyAll();
+        }
+        long start = System.currentTimeMillis();
+        Throwable failure = null;
+        try {
+          writer.write(batch, books.toArray());
+        } catch (Throwable t) {
+          failure = t;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        flushes.incrementAndGet();
+        booksWritten.addAndGet(books.size());
+        postingsWritten.addAndGet(postings);
+        termWrites.addAndGet(batch.size());
+        lastLatencyMs = elapsed;
+        adapt(postings, elapsed);
+        if (failure == null) {
+          done.complete(null);
+        } else {
+          done.completeExceptionally(failure);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean due() {
+    return !pendingBooks.isEmpty() && (flushRequested || pendingPostings >= limit
+        || System.currentTimeMillis() - firstAddedAt >= WINDOW_MS);
+  }
+
+  private void adapt(long postings, long elapsedMs) {
+    if (elapsedMs > TARGET_MS) {
+      limit = (int) Math.max(MIN_POSTINGS, Math.min(limit, postings * TARGET_MS / elapsedMs));
+    } else if (postings >= limit && elapsedMs < TARGET_MS / 2) {
+      limit = (int) Math.min(MAX_POSTINGS, limit * 3L / 2);
+    }
+  }
+}